@@ -4,6 +4,10 @@ import java.net.URL;
 import java.util.Scanner;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.HashMap;
 import java.net.HttpURLConnection;
 import java.io.OutputStream;
 import org.apache.commons.codec.binary.Base64;
@@ -25,6 +29,8 @@ public class BitcoinRPC implements RawBitcoinDataSource
     private int port;
     private EventLog event_log;
 
+    public static final int TX_BATCH_SIZE=1000;
+
     public BitcoinRPC(Config config, EventLog event_log)
     {
         config.require("bitcoind_username");
@@ -68,6 +74,25 @@ public class BitcoinRPC implements RawBitcoinDataSource
         }
     }
 
+    /**
+     * Sends a JSON-RPC batch.  bitcoind returns the replies in any order
+     * so match them up by id.
+     */
+    public JSONArray sendPostBatch(JSONArray post)
+        throws java.io.IOException, org.json.JSONException
+    {
+        String str = sendPost(getUrl(), post.toString());
+        try
+        {
+          return new JSONArray(str);
+        }
+        catch(org.json.JSONException t)
+        {
+          System.out.println("Parse error: " + str);
+          throw t;
+        }
+    }
+
     protected String sendPost(String url, String postdata)
         throws java.io.IOException
     {
@@ -271,6 +296,83 @@ public class BitcoinRPC implements RawBitcoinDataSource
         }
       }
     }
+
+    /**
+     * Calls method once for each hash, in batches.  Returns the non-null
+     * results keyed by hash.
+     */
+    private Map<Sha256Hash, Object> sendBatchByHash(String method, Collection<Sha256Hash> hashes)
+        throws java.io.IOException, org.json.JSONException
+    {
+      HashMap<Sha256Hash, Object> found = new HashMap<>(hashes.size()*2+1, 0.5f);
+
+      ArrayList<Sha256Hash> lst = new ArrayList<>(hashes);
+      for(int start=0; start<lst.size(); start+=TX_BATCH_SIZE)
+      {
+        int end = Math.min(lst.size(), start + TX_BATCH_SIZE);
+        JSONArray batch = new JSONArray();
+        for(int i=start; i<end; i++)
+        {
+          JSONObject msg = new JSONObject();
+          msg.put("id", i);
+          msg.put("method", method);
+          JSONArray params = new JSONArray();
+          params.put(lst.get(i).toString());
+          msg.put("params", params);
+          batch.put(msg);
+        }
+
+        JSONArray replies = sendPostBatch(batch);
+        for(int i=0; i<replies.length(); i++)
+        {
+          JSONObject reply = replies.getJSONObject(i);
+          if (reply.isNull("result")) continue;
+
+          found.put(lst.get(reply.getInt("id")), reply.get("result"));
+        }
+      }
+      return found;
+    }
+
+    /**
+     * Loads many transactions with batched getrawtransaction calls.
+     * Transactions bitcoind doesn't know about are left out of the result.
+     */
+    public Map<Sha256Hash, SerializedTransaction> getTransactions(Collection<Sha256Hash> hashes)
+        throws java.io.IOException, org.json.JSONException
+    {
+      HashMap<Sha256Hash, SerializedTransaction> found = new HashMap<>(hashes.size()*2+1, 0.5f);
+
+      for(Map.Entry<Sha256Hash, Object> me : sendBatchByHash("getrawtransaction", hashes).entrySet())
+      {
+        try
+        {
+          byte[] data = Hex.decodeHex(me.getValue().toString().toCharArray());
+          found.put(me.getKey(), new SerializedTransaction(data));
+        }
+        catch(org.apache.commons.codec.DecoderException e)
+        {
+          event_log.alarm("RPC error on tx "+me.getKey()+ " " + e.toString()); 
+        }
+      }
+      return found;
+    }
+
+    /**
+     * Batched getmempoolentry.  Transactions no longer in the mempool
+     * are left out of the result.
+     */
+    public Map<Sha256Hash, JSONObject> getMempoolEntries(Collection<Sha256Hash> hashes)
+        throws java.io.IOException, org.json.JSONException
+    {
+      HashMap<Sha256Hash, JSONObject> found = new HashMap<>(hashes.size()*2+1, 0.5f);
+      for(Map.Entry<Sha256Hash, Object> me : sendBatchByHash("getmempoolentry", hashes).entrySet())
+      {
+        found.put(me.getKey(), (JSONObject)me.getValue());
+      }
+      return found;
+    }
+
     public JSONObject getVerboseTransaction(Sha256Hash hash)
     {
       while(true)
@@ -0,0 +1,30 @@
+package jelectrum;
+
+/**
+ * Turns bitcoind zmq notifications into immediate block download
+ * and mempool passes.
+ */
+public class BitcoindZmqListener implements ZmqSubscriber.Listener
+{
+  private Jelectrum jelly;
+
+  public BitcoindZmqListener(Jelectrum jelly)
+  {
+    this.jelly = jelly;
+  }
+
+  public void onZmqMessage(String topic, byte[] body)
+  {
+    if (topic.equals("hashblock"))
+    {
+      jelly.getBlockDownloadThread().triggerUpdate();
+      // Confirmed transactions leave the mempool
+      jelly.getMemPooler().triggerUpdate();
+    }
+    else if (topic.equals("rawtx"))
+    {
+      jelly.getMemPooler().triggerUpdate();
+    }
+  }
+
+}
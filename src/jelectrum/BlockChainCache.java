@@ -14,23 +14,71 @@ import org.bitcoinj.store.BlockStore;
 
 /**
  * Maintains a mapping of integers to block hashes
+ *
+ * Lookups come from an in memory array, kept in a file of its own for
+ * quick startup.  The DB height_map is still written and is what the
+ * array catches up from if the file is missing or behind.
  */
 public class BlockChainCache
 {
+  private static final int CATCH_UP_BATCH=10000;
+
   private BlockStore store;
   private Map<Integer, Sha256Hash> height_map;
+  private HeightHashArray height_array;
   private volatile Sha256Hash last_head;
   private EventLog event_log;
 
 
-  public BlockChainCache(BlockStore store, Map<Integer, Sha256Hash> height_map, EventLog event_log)
+  public BlockChainCache(BlockStore store, Map<Integer, Sha256Hash> height_map, HeightHashArray height_array, EventLog event_log)
+    throws java.io.IOException
   {
     this.store = store;
     this.height_map = height_map;
+    this.height_array = height_array;
     this.event_log = event_log;
+
+    catchUp();
+  }
+
+  /**
+   * Drops anything at the end of the array that the DB disagrees with,
+   * then adds whatever the DB has past it
+   */
+  private void catchUp()
+    throws java.io.IOException
+  {
+    int n = height_array.size();
+    while((n > 0) && (!height_array.get(n - 1).equals(height_map.get(n - 1)))) n--;
+    if (n < height_array.size())
+    {
+      event_log.log("BlockChainCache: dropping " + (height_array.size() - n) + " from height array");
+      height_array.truncate(n);
+    }
+
+    int added = 0;
+    ArrayList<Sha256Hash> batch = new ArrayList<>();
+    while(true)
+    {
+      Sha256Hash hash = height_map.get(n + batch.size());
+      if (hash != null) batch.add(hash);
+      if ((hash == null) || (batch.size() >= CATCH_UP_BATCH))
+      {
+        // one file write per batch rather than per height
+        height_array.setAll(n, batch);
+        n += batch.size();
+        added += batch.size();
+        batch.clear();
+      }
+      if (hash == null) break;
+    }
+    if (added > 0)
+    {
+      event_log.log("BlockChainCache: loaded " + added + " from height map");
+    }
   }
 
-  public void update(Jelectrum jelly, StoredBlock new_head)
+  public synchronized void update(Jelectrum jelly, StoredBlock new_head)
       throws org.bitcoinj.store.BlockStoreException
   {
     last_head = new_head.getHeader().getHash();
@@ -75,6 +123,18 @@ public class BlockChainCache
     {
       height_map.put(me.getKey(), me.getValue());
     }
+    // One copy of the array for the whole update, however deep the reorg
+    if (!to_write.isEmpty())
+    {
+      try
+      {
+        height_array.setAll(to_write.firstKey(), new ArrayList<Sha256Hash>(to_write.values()));
+      }
+      catch(java.io.IOException e)
+      {
+        throw new org.bitcoinj.store.BlockStoreException(e);
+      }
+    }
     if (reorg > 0)
     {
       event_log.alarm("BlockChainCache: re-org of " + reorg + " blocks found");
@@ -83,13 +143,20 @@ public class BlockChainCache
   }
 
     public static BlockChainCache load(Jelectrum jelly)
+        throws java.io.IOException
     {
-        return new BlockChainCache(jelly.getBlockStore(), jelly.getDB().getHeightMap(), jelly.getEventLog());
+        String path = "heights.dat";
+        if (jelly.getConfig().isSet("height_file_path"))
+        {
+          path = jelly.getConfig().get("height_file_path");
+        }
+        HeightHashArray height_array = new HeightHashArray(new java.io.File(path));
+        return new BlockChainCache(jelly.getBlockStore(), jelly.getDB().getHeightMap(), height_array, jelly.getEventLog());
     }
 
     public Sha256Hash getBlockHashAtHeight(int height)
     {
-      return height_map.get(height);
+      return height_array.get(height);
     }
     public boolean isBlockInMainChain(Sha256Hash hash)
     {
@@ -8,9 +8,14 @@ import java.util.HashSet;
 
 public class BlockDownloadThread extends Thread
 {
+  public static final long POLL_DELAY=500L;
+  public static final long POLL_DELAY_WITH_PUSH=10000L;
+
   private Jelectrum jelly;
 
   private HashSet<Sha256Hash> downloaded;
+  private long poll_delay;
+  private boolean triggered;
 
   public BlockDownloadThread(Jelectrum jelly)
   {
@@ -19,6 +24,25 @@ public class BlockDownloadThread extends Thread
     setDaemon(true);
 
     downloaded=new HashSet<>();
+
+    poll_delay = POLL_DELAY;
+    if (jelly.getConfig().isSet("bitcoind_zmq_url"))
+    {
+      // Push notifications wake us up, polling is just a safety net
+      poll_delay = POLL_DELAY_WITH_PUSH;
+    }
+  }
+
+  /**
+   * Wake up and check bitcoind for new blocks now rather than waiting for the next poll
+   */
+  public void triggerUpdate()
+  {
+    synchronized(this)
+    {
+      triggered=true;
+      this.notifyAll();
+    }
   }
 
   public void run()
@@ -36,7 +60,11 @@ public class BlockDownloadThread extends Thread
       }
       try
       {
-        Thread.sleep(500);
+        synchronized(this)
+        {
+          if (!triggered) this.wait(poll_delay);
+          triggered=false;
+        }
       }
       catch(Throwable t)
       {
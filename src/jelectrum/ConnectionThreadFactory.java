@@ -0,0 +1,71 @@
+package jelectrum;
+
+import java.lang.reflect.Method;
+
+/**
+ * Makes the reader and writer threads for each connection.  With virtual
+ * threads on, and a JDK that has them (21+), these are virtual threads so
+ * the blocking socket code can hold tens of thousands of connections
+ * without a platform thread each.  Otherwise plain daemon threads.
+ *
+ * Found by reflection since we still build for older JDKs.
+ */
+public class ConnectionThreadFactory implements java.util.concurrent.ThreadFactory
+{
+  private final Object virtual_builder;
+  private final Method unstarted;
+
+  public ConnectionThreadFactory(boolean use_virtual, EventLog log)
+  {
+    Object builder = null;
+    Method m = null;
+    if (use_virtual)
+    {
+      try
+      {
+        builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        m = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        log.log("Stratum connections on virtual threads");
+      }
+      catch(Exception e)
+      {
+        log.alarm("Virtual threads not available on this JDK, using platform threads: " + e);
+        builder = null;
+        m = null;
+      }
+    }
+    virtual_builder = builder;
+    unstarted = m;
+  }
+
+  public boolean isVirtual()
+  {
+    return virtual_builder != null;
+  }
+
+  public Thread newThread(Runnable r)
+  {
+    if (virtual_builder != null)
+    {
+      try
+      {
+        return (Thread) unstarted.invoke(virtual_builder, r);
+      }
+      catch(Exception e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    Thread t = new Thread(r);
+    t.setDaemon(true);
+    return t;
+  }
+
+  public Thread newThread(Runnable r, String name)
+  {
+    Thread t = newThread(r);
+    t.setName(name);
+    return t;
+  }
+
+}
@@ -11,6 +11,9 @@ import java.util.Collection;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
@@ -22,8 +25,10 @@ import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.AddressFormatException;
 import org.json.JSONObject;
+import org.apache.commons.codec.binary.Hex;
 import org.json.JSONArray;
 import com.google.protobuf.ByteString;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import org.junit.Assert;
 /**
@@ -32,11 +37,22 @@ import org.junit.Assert;
  */
 public class ElectrumNotifier
 {
-    Map<String, Subscriber> block_subscribers;
-    Map<String, Subscriber> blocknum_subscribers;
-    Map<ByteString, Map<String, Subscriber> > scripthash_subscribers;
+    ConcurrentMap<String, Subscriber> block_subscribers;
+    ConcurrentMap<String, Subscriber> block_raw_subscribers;
+    ConcurrentMap<String, Subscriber> blocknum_subscribers;
+    ConcurrentMap<ByteString, ConcurrentMap<String, Subscriber> > scripthash_subscribers;
+
+    /**
+     * Reverse index of scripthash subscriptions by connection id, so a closed
+     * connection can be cleaned up without walking every subscription
+     */
+    ConcurrentMap<String, Set<ByteString> > connection_scripthashes;
+    AtomicInteger scripthash_subscription_count = new AtomicInteger(0);
+
     LRUCache<ByteString, String> scripthash_sums;
 
+    NotificationDispatcher dispatcher;
+
     Jelectrum jelly;
     private TXUtil tx_util;
 
@@ -49,37 +65,59 @@ public class ElectrumNotifier
         this.jelly = jelly;
         tx_util = jelly.getDB().getTXUtil();
 
-        block_subscribers = new HashMap<String, Subscriber>(512, 0.5f);
-        blocknum_subscribers = new HashMap<String, Subscriber>(512, 0.5f);
-        scripthash_subscribers = new HashMap<ByteString, Map<String, Subscriber> >(512, 0.5f);
+        block_subscribers = new ConcurrentHashMap<String, Subscriber>(512, 0.75f, 16);
+        block_raw_subscribers = new ConcurrentHashMap<String, Subscriber>(512, 0.75f, 16);
+        blocknum_subscribers = new ConcurrentHashMap<String, Subscriber>(512, 0.75f, 16);
+        scripthash_subscribers = new ConcurrentHashMap<ByteString, ConcurrentMap<String, Subscriber> >(65536, 0.75f, 64);
+        connection_scripthashes = new ConcurrentHashMap<String, Set<ByteString> >(4096, 0.75f, 64);
         scripthash_sums = new LRUCache<ByteString, String>(10000);
 
+        long coalesce_ms = 200L;
+        if (jelly.getConfig().isSet("notify_coalesce_ms"))
+        {
+          coalesce_ms = jelly.getConfig().getInt("notify_coalesce_ms");
+        }
+        dispatcher = new NotificationDispatcher(this, jelly.getEventLog(), coalesce_ms);
+
     }
     public void start()
         throws org.bitcoinj.store.BlockStoreException
     {
         chain_head = jelly.getBlockStore().getChainHead();
 
+        int notify_threads = 4;
+        if (jelly.getConfig().isSet("notify_threads"))
+        {
+          notify_threads = jelly.getConfig().getInt("notify_threads");
+        }
+        dispatcher.start(notify_threads);
 
-        new PruneThread().start();
+        new SummaryThread().start();
 
     }
 
+    public NotificationDispatcher getDispatcher()
+    {
+        return dispatcher;
+    }
+
     public int getHeadHeight()
     {
         return chain_head.getHeight();
     }
 
 
-    public void registerBlockchainHeaders(StratumConnection conn, Object request_id, boolean send_initial)
+    /**
+     * Raw subscribers get the header as {hex, height}, as of protocol 1.4
+     */
+    public void registerBlockchainHeaders(StratumConnection conn, Object request_id, boolean send_initial, boolean raw)
     {
     
         Subscriber sub = new Subscriber(conn, request_id);
-        synchronized(block_subscribers)
-        {
-            String conn_id = conn.getId();
-            block_subscribers.put(conn_id, sub);
-        }
+        ConcurrentMap<String, Subscriber> subs = block_subscribers;
+        if (raw) subs = block_raw_subscribers;
+        subs.put(conn.getId(), sub);
+        if (!conn.isOpen()) subs.remove(conn.getId());
         if (send_initial)
         {
             StoredBlock blk = chain_head;
@@ -88,7 +126,14 @@ public class ElectrumNotifier
                 JSONObject reply = sub.startReply();
 
                 JSONObject block_data = new JSONObject();
-                populateBlockData(blk, block_data);
+                if (raw)
+                {
+                  populateRawBlockData(blk, block_data);
+                }
+                else
+                {
+                  populateBlockData(blk, block_data);
+                }
                 reply.put("result", block_data);
                 reply.put("jsonrpc", "2.0");
 
@@ -107,11 +152,8 @@ public class ElectrumNotifier
     {
     
         Subscriber sub = new Subscriber(conn, request_id);
-        synchronized(blocknum_subscribers)
-        {
-            String conn_id = conn.getId();
-            blocknum_subscribers.put(conn_id, sub);
-        }
+        blocknum_subscribers.put(conn.getId(), sub);
+        if (!conn.isOpen()) blocknum_subscribers.remove(conn.getId());
         if (send_initial)
         {
             StoredBlock blk = chain_head;
@@ -144,30 +186,59 @@ public class ElectrumNotifier
         {
             if (blk.getHeight() >= chain_head.getHeight())
             {
+                Sha256Hash head_hash = chain_head.getHeader().getHash();
+                if ((!blk.getHeader().getHash().equals(head_hash)) && (!blk.getHeader().getPrevBlockHash().equals(head_hash)))
+                {
+                    jelly.getResponseCache().invalidateReorg();
+                }
                 chain_head = blk;        
             }
         }
-        synchronized(block_subscribers)
+        dispatcher.enqueueBlock();
+    }
+
+    /**
+     * Runs on a NotificationDispatcher thread
+     */
+    protected void sendBlockNotifications()
+    {
+        StoredBlock blk = chain_head;
+        if (block_subscribers.size() > 0)
         {
+            EncodedMessage msg = getBlockNotify(blk, false);
             for(Subscriber sub : block_subscribers.values())
             {
-                blockNotify(sub, chain_head);
-
+                sub.sendReply(msg);
             }
         }
-        synchronized(blocknum_subscribers)
+        if (block_raw_subscribers.size() > 0)
         {
+            EncodedMessage msg = getBlockNotify(blk, true);
+            for(Subscriber sub : block_raw_subscribers.values())
+            {
+                sub.sendReply(msg);
+            }
+        }
+        if (blocknum_subscribers.size() > 0)
+        {
+            EncodedMessage msg = getBlockNumNotify(blk);
             for(Subscriber sub : blocknum_subscribers.values())
             {
-                blockNumNotify(sub, chain_head);
-
+                sub.sendReply(msg);
             }
         }
-        
     }
+
+    /**
+     * Cached statuses are dropped right away, the status computation
+     * and sending to subscribers happens on the NotificationDispatcher threads.
+     * Scripthashes no one is subscribed to are skipped.
+     */
     public void notifyNewTransaction(Collection<ByteString> scripthashes, int height)
     {
       Assert.assertNotNull(scripthashes);
+        jelly.getResponseCache().invalidateScriptHashes(scripthashes);
+
         synchronized(scripthash_sums)
         {
             for(ByteString s : scripthashes)
@@ -176,47 +247,54 @@ public class ElectrumNotifier
             }
         }
 
-        //Inside a sync do a deep copy of just the entries that we need
-        Map<ByteString, Map<String, Subscriber> > scripthash_subscribers_copy = new HashMap<ByteString, Map<String, Subscriber>>();
-        synchronized(scripthash_subscribers)
+        for(ByteString s : scripthashes)
         {
-            for(ByteString s : scripthashes)
+            Map<String, Subscriber> m = scripthash_subscribers.get(s);
+            if ((m != null) && (m.size() > 0))
             {
-                Map<String, Subscriber> m = scripthash_subscribers.get(s);
-                if (m != null)
-                {
-                    TreeMap<String, Subscriber> copy = new TreeMap<String, Subscriber>();
-                    copy.putAll(m);
-                    scripthash_subscribers_copy.put(s, m);
-                }
+                dispatcher.enqueueScriptHash(s);
             }
         }
+    }
+
+    /**
+     * Runs on a NotificationDispatcher thread
+     */
+    protected void sendScriptHashNotifications(ByteString s)
+    {
+        Map<String, Subscriber> m = scripthash_subscribers.get(s);
+        if ((m == null) || (m.size() == 0)) return;
 
-        //Now with our clean copy we can do the notifications without holding any locks
         try
         {
-            for(ByteString s : scripthashes)
+            String sum = getScriptHashChecksum(s); 
+
+            // One message per form, almost always just the one
+            EncodedMessage scripthash_msg = null;
+            HashMap<String, EncodedMessage> address_msgs = null;
+            for(Subscriber sub : m.values())
             {
-                Map<String, Subscriber> m = scripthash_subscribers_copy.get(s);
-                if ((m != null) && (m.size() > 0))
+                String address = sub.getAddress();
+                EncodedMessage msg;
+                if (address == null)
                 {
-                    String sum = getScriptHashChecksum(s); 
-
-                    JSONObject reply = new JSONObject();
-                    JSONArray info = new JSONArray();
-                    info.put(s);
-                    info.put(sum);
-                    reply.put("params", info);
-                    reply.put("id", JSONObject.NULL);
-                    reply.put("method", "blockchain.address.subscribe");
-
-
-                    for(Subscriber sub : m.values())
+                    if (scripthash_msg == null)
+                    {
+                        scripthash_msg = getScriptHashNotify(s, "blockchain.scripthash.subscribe", Util.getHexString(s), sum);
+                    }
+                    msg = scripthash_msg;
+                }
+                else
+                {
+                    if (address_msgs == null) address_msgs = new HashMap<>();
+                    msg = address_msgs.get(address);
+                    if (msg == null)
                     {
-                       sub.sendReply(reply);
+                        msg = getScriptHashNotify(s, "blockchain.address.subscribe", address, sum);
+                        address_msgs.put(address, msg);
                     }
-                
                 }
+                sub.sendReply(msg);
             }
         }
         catch(org.json.JSONException e)
@@ -230,7 +308,21 @@ public class ElectrumNotifier
 
     }
 
-    private void blockNotify(Subscriber sub, StoredBlock blk)
+    private EncodedMessage getScriptHashNotify(ByteString s, String method, String target, String sum)
+        throws org.json.JSONException
+    {
+        JSONObject reply = new JSONObject();
+        JSONArray info = new JSONArray();
+        info.put(target);
+        info.put(sum == null ? JSONObject.NULL : sum);
+        reply.put("params", info);
+        reply.put("id", JSONObject.NULL);
+        reply.put("method", method);
+
+        return new EncodedMessage(reply, s);
+    }
+
+    private EncodedMessage getBlockNotify(StoredBlock blk, boolean raw)
     {
 
         try
@@ -238,7 +330,14 @@ public class ElectrumNotifier
                 JSONObject reply = new JSONObject();
 
                 JSONObject block_data = new JSONObject();
-                populateBlockData(blk, block_data);
+                if (raw)
+                {
+                  populateRawBlockData(blk, block_data);
+                }
+                else
+                {
+                  populateBlockData(blk, block_data);
+                }
 
                 JSONArray crap = new JSONArray();
                 crap.put(block_data);
@@ -247,7 +346,7 @@ public class ElectrumNotifier
                 reply.put("id", JSONObject.NULL);
                 reply.put("method", "blockchain.headers.subscribe");
 
-                sub.sendReply(reply);
+                return new EncodedMessage(reply, "blockchain.headers.subscribe");
       
 
         }
@@ -257,7 +356,7 @@ public class ElectrumNotifier
         }
 
     }
-    private void blockNumNotify(Subscriber sub, StoredBlock blk)
+    private EncodedMessage getBlockNumNotify(StoredBlock blk)
     {
 
         try
@@ -271,7 +370,7 @@ public class ElectrumNotifier
                 reply.put("id", JSONObject.NULL);
                 reply.put("method", "blockchain.numblocks.subscribe");
 
-                sub.sendReply(reply);
+                return new EncodedMessage(reply, "blockchain.numblocks.subscribe");
       
 
         }
@@ -300,16 +399,56 @@ public class ElectrumNotifier
 
     }
 
-    public void registerBlockchainAddress(StratumConnection conn, Object request_id, boolean send_initial, ByteString scripthash)
+    public void populateRawBlockData(StoredBlock blk, JSONObject block_data)
+        throws org.json.JSONException
     {
-        Subscriber sub = new Subscriber(conn, request_id);
-        synchronized(scripthash_subscribers)
+        byte[] header = blk.getHeader().bitcoinSerialize();
+        block_data.put("hex", Hex.encodeHexString(java.util.Arrays.copyOf(header, 80)));
+        block_data.put("height", blk.getHeight());
+    }
+
+    /**
+     * address is what a blockchain.address.subscribe was given, so notifications
+     * go back in that form, or null for blockchain.scripthash.subscribe
+     */
+    public void registerBlockchainAddress(StratumConnection conn, Object request_id, boolean send_initial, ByteString scripthash, String address)
+    {
+        Subscriber sub = new Subscriber(conn, request_id, address);
+        String conn_id = conn.getId();
+
+        Set<ByteString> conn_set = connection_scripthashes.get(conn_id);
+        if (conn_set == null)
         {
-            if (scripthash_subscribers.get(scripthash) == null)
+            conn_set = java.util.Collections.newSetFromMap(new ConcurrentHashMap<ByteString, Boolean>(16, 0.75f, 2));
+            Set<ByteString> existing = connection_scripthashes.putIfAbsent(conn_id, conn_set);
+            if (existing != null) conn_set = existing;
+        }
+        conn_set.add(scripthash);
+
+        ConcurrentMap<String, Subscriber> m;
+        while(true)
+        {
+            m = scripthash_subscribers.get(scripthash);
+            if (m == null)
             {
-                scripthash_subscribers.put(scripthash, new TreeMap<String, Subscriber>());
+                m = new ConcurrentHashMap<String, Subscriber>(4, 0.75f, 2);
+                ConcurrentMap<String, Subscriber> existing = scripthash_subscribers.putIfAbsent(scripthash, m);
+                if (existing != null) m = existing;
             }
-            scripthash_subscribers.get(scripthash).put(conn.getId(), sub);
+            if (m.put(conn_id, sub) == null) scripthash_subscription_count.incrementAndGet();
+
+            // If a close emptied and dropped this map in the meantime, go again
+            if (scripthash_subscribers.get(scripthash) == m) break;
+        }
+
+        if (!conn.isOpen())
+        {
+            // The close may have gone over this connection's set before the
+            // put above, so take this one out directly rather than through it
+            if (m.remove(conn_id, sub)) scripthash_subscription_count.decrementAndGet();
+            if (m.isEmpty()) scripthash_subscribers.remove(scripthash, m);
+            connectionClosed(conn);
+            return;
         }
         if (send_initial)
         {
@@ -335,69 +474,68 @@ public class ElectrumNotifier
 
     }
 
-    public void sendAddressHistory(StratumConnection conn, Object request_id, ByteString scripthash, boolean include_confirmed, boolean include_mempool)
+    public void sendAddressHistory(StratumConnection conn, Object request_id, ByteString scripthash, boolean include_confirmed, boolean include_mempool, ResponseCache.Key cache_key)
     {
         Subscriber sub = new Subscriber(conn, request_id);
         try
         {
-            JSONObject reply = sub.startReply();
-
-            reply.put("result", getScriptHashHistory(scripthash,include_confirmed,include_mempool));
-
-            sub.sendReply(reply);
+            List<SortedTransaction> lst = getTransactionsForScriptHash(scripthash,include_confirmed,include_mempool);
 
+            StreamingReply sr = new StreamingReply();
+            JsonGenerator gen = sr.getGenerator();
+            gen.writeStartArray();
+            for(SortedTransaction ts : lst)
+            {
+                writeHistoryEntry(gen, ts.tx.getHash().toString(), getHistoryHeight(ts), ts.fee);
+            }
+            gen.writeEndArray();
 
+            sub.sendResult(sr.finish(), cache_key);
         }
-        catch(org.json.JSONException e)
+        catch(java.io.IOException e)
         {   
             throw new RuntimeException(e);
         }
     }
 
-    public void sendUnspent(StratumConnection conn, Object request_id, ByteString target)
+    public void sendUnspent(StratumConnection conn, Object request_id, ByteString target, ResponseCache.Key cache_key)
       throws AddressFormatException
     {
       try
       {
         Subscriber sub = new Subscriber(conn, request_id);
-        JSONObject reply = sub.startReply();
 
         Collection<TransactionOutPoint> outs = jelly.getUtxoSource().getUnspentForScriptHash(target);
 
-        
-        JSONArray arr =new JSONArray();
-
+        StreamingReply sr = new StreamingReply();
+        JsonGenerator gen = sr.getGenerator();
+        gen.writeStartArray();
 
         for(TransactionOutPoint out : outs)
         {
-          JSONObject o = new JSONObject();
-          o.put("tx_hash", out.getHash().toString());
-          o.put("tx_pos", out.getIndex());
-
           SortedTransaction s_tx = new SortedTransaction(out.getHash(), false);
 
           Transaction tx = s_tx.tx; 
           long value = tx.getOutput((int)out.getIndex()).getValue().longValue();
-          o.put("value",value);
-          o.put("height", s_tx.getEffectiveHeight());
-          
-          arr.put(o);
-        }
-
-
-        reply.put("result", arr);
-
 
+          gen.writeStartObject();
+          gen.writeStringField("tx_hash", out.getHash().toString());
+          gen.writeNumberField("tx_pos", out.getIndex());
+          gen.writeNumberField("value", value);
+          gen.writeNumberField("height", s_tx.getEffectiveHeight());
+          gen.writeEndObject();
+        }
+        gen.writeEndArray();
 
-        sub.sendReply(reply);
+        sub.sendResult(sr.finish(), cache_key);
       }
-      catch(org.json.JSONException e)
+      catch(java.io.IOException e)
       {   
         throw new RuntimeException(e);
       }
     }
 
-    public void sendAddressBalance(StratumConnection conn, Object request_id, ByteString target)
+    public void sendAddressBalance(StratumConnection conn, Object request_id, ByteString target, ResponseCache.Key cache_key)
       throws AddressFormatException
     {
 
@@ -482,7 +620,7 @@ public class ElectrumNotifier
             //arr.put(b_c);
             //arr.put(b_u);
             reply.put("result", arr);
-            sub.sendReply(reply);
+            sub.sendReply(reply, cache_key);
 
 
         }
@@ -507,23 +645,7 @@ public class ElectrumNotifier
 
                 for(SortedTransaction ts : lst)
                 {
-                    JSONObject o = new JSONObject();
-                    o.put("tx_hash", ts.tx.getHash().toString());
-                    if (ts.confirmed)
-                    {
-                        o.put("height", ts.height);
-                    }
-                    else
-                    {
-                        int height = 0;
-                        if (jelly.getMemPooler().areSomeInputsPending(ts.tx)) height = -1;
-                        o.put("height", height);
-                    }
-                    if (ts.fee >= 0)
-                    {
-                      o.put("fee",ts.fee);
-                    }
-                    arr.put(o);
+                    arr.put(getHistoryEntry(ts.tx.getHash().toString(), getHistoryHeight(ts), ts.fee));
                 }
                 return arr;
 
@@ -542,6 +664,48 @@ public class ElectrumNotifier
 
     }
 
+    /**
+     * One get_history entry as sendAddressHistory streams it, the fee only if known
+     */
+    public static void writeHistoryEntry(JsonGenerator gen, String tx_hash, int height, long fee)
+        throws java.io.IOException
+    {
+        gen.writeStartObject();
+        gen.writeStringField("tx_hash", tx_hash);
+        gen.writeNumberField("height", height);
+        if (fee >= 0)
+        {
+          gen.writeNumberField("fee", fee);
+        }
+        gen.writeEndObject();
+    }
+
+    /**
+     * The same entry for getScriptHashHistory
+     */
+    public static JSONObject getHistoryEntry(String tx_hash, int height, long fee)
+        throws org.json.JSONException
+    {
+        JSONObject o = new JSONObject();
+        o.put("tx_hash", tx_hash);
+        o.put("height", height);
+        if (fee >= 0)
+        {
+          o.put("fee",fee);
+        }
+        return o;
+    }
+
+    /**
+     * Confirmed height, or 0 for mempool and -1 for mempool with mempool parents
+     */
+    private int getHistoryHeight(SortedTransaction ts)
+    {
+        if (ts.confirmed) return ts.height;
+        if (jelly.getMemPooler().areSomeInputsPending(ts.tx)) return -1;
+        return 0;
+    }
+
     public String getScriptHashChecksum(ByteString address)
     {
         synchronized(scripthash_sums)
@@ -590,39 +754,56 @@ public class ElectrumNotifier
     }
 
 
-    private void printSubscriptionSummary()
+    /**
+     * Drops everything a connection subscribed to.
+     * Costs in proportion to that connection's subscriptions.
+     */
+    public void connectionClosed(StratumConnection conn)
     {
-      int conn_count = jelly.getStratumServer().getConnectionCount();
-      int block_subscriber_count = 0;
-      int blocknum_subscriber_count = 0;
-      int address_subscriptions = 0;
-      synchronized(block_subscribers)
-      {
-        block_subscriber_count = block_subscribers.size();
-      }
-      synchronized(blocknum_subscribers)
-      {
-        blocknum_subscriber_count = blocknum_subscribers.size();
-      }
-      synchronized(scripthash_subscribers)
-      {
-        for(Map.Entry<ByteString, Map<String, Subscriber>> me : scripthash_subscribers.entrySet())
+        String conn_id = conn.getId();
+        block_subscribers.remove(conn_id);
+        block_raw_subscribers.remove(conn_id);
+        blocknum_subscribers.remove(conn_id);
+
+        Set<ByteString> conn_set = connection_scripthashes.remove(conn_id);
+        if (conn_set == null) return;
+
+        for(ByteString scripthash : conn_set)
         {
-          address_subscriptions += me.getValue().size();
+            ConcurrentMap<String, Subscriber> m = scripthash_subscribers.get(scripthash);
+            if (m == null) continue;
+
+            if (m.remove(conn_id) != null) scripthash_subscription_count.decrementAndGet();
+            if (m.isEmpty())
+            {
+                scripthash_subscribers.remove(scripthash, m);
+            }
         }
+    }
 
-      }
+    public int getScriptHashSubscriptionCount()
+    {
+        return scripthash_subscription_count.get();
+    }
 
-      jelly.getEventLog().log("USERS Connections: " + conn_count + " Block subs: " + block_subscriber_count + " Block num subs: " + blocknum_subscriber_count + " Address subs: " + address_subscriptions);
+    private void printSubscriptionSummary()
+    {
+      int conn_count = jelly.getStratumServer().getConnectionCount();
 
-    
+      jelly.getEventLog().log("USERS Connections: " + conn_count 
+        + " Block subs: " + (block_subscribers.size() + block_raw_subscribers.size())
+        + " Block num subs: " + blocknum_subscribers.size() 
+        + " Address subs: " + scripthash_subscription_count.get()
+        + " Addresses: " + scripthash_subscribers.size());
+      jelly.getEventLog().log(dispatcher.getSummary());
+      jelly.getEventLog().log(jelly.getResponseCache().getSummary());
     }
 
-    public class PruneThread extends Thread
+    public class SummaryThread extends Thread
     {
-        public PruneThread()
+        public SummaryThread()
         {
-            setName("ElectrumNotifier/PruneThread");
+            setName("ElectrumNotifier/SummaryThread");
             setDaemon(true);
         }
         public void run()
@@ -631,42 +812,8 @@ public class ElectrumNotifier
             {
                 try{Thread.sleep(60000);}catch(Exception e){}
 
-
-                synchronized(block_subscribers)
-                {
-                  pruneMap(block_subscribers);
-                }
-                synchronized(blocknum_subscribers)
-                {
-                  pruneMap(blocknum_subscribers);
-                }
-
-                synchronized(scripthash_subscribers)
-                {
-                  for(Map.Entry<ByteString, Map<String, Subscriber>> me : scripthash_subscribers.entrySet())
-                  {
-                    pruneMap(me.getValue());
-                  }
-                }
                 printSubscriptionSummary();
             }
-
-
-        }
-        private void pruneMap(Map<String, Subscriber> input_map)
-        {
-          TreeSet<String> to_delete =new TreeSet<String>();
-          for(Subscriber sub : input_map.values())
-          {
-            if (!sub.isOpen())
-            {
-              to_delete.add(sub.getId());
-            }
-          }
-          for(String id : to_delete)
-          {
-            input_map.remove(id);
-          }
         }
     }
 
@@ -718,11 +865,18 @@ public class ElectrumNotifier
     {
         private StratumConnection conn;
         private Object request_id;
+        private String address;
 
         public Subscriber(StratumConnection conn, Object request_id)
+        {
+            this(conn, request_id, null);
+        }
+
+        public Subscriber(StratumConnection conn, Object request_id, String address)
         {
             this.conn = conn;
             this.request_id = request_id;
+            this.address = address;
         }
 
         public JSONObject startReply()
@@ -739,6 +893,18 @@ public class ElectrumNotifier
         {
             conn.sendMessage(o);
         }
+        public void sendReply(EncodedMessage msg)
+        {
+            conn.sendMessage(msg);
+        }
+        public void sendReply(JSONObject o, ResponseCache.Key cache_key)
+        {
+            conn.sendMessage(o, cache_key);
+        }
+        public void sendResult(byte[] result, ResponseCache.Key cache_key)
+        {
+            conn.sendResult(request_id, result, cache_key);
+        }
         public boolean isOpen()
         {
             return conn.isOpen();
@@ -747,6 +913,10 @@ public class ElectrumNotifier
         {
             return conn.getId();
         }
+        public String getAddress()
+        {
+            return address;
+        }
     }
 
     public class SortedTransaction implements Comparable<SortedTransaction>
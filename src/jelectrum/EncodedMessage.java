@@ -0,0 +1,97 @@
+package jelectrum;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/**
+ * A JSON message already rendered to the bytes of one line on the wire.
+ *
+ * Notifications are the same for every subscriber, so they are encoded
+ * once and the same instance goes on each connection's outbound queue.
+ * Immutable, safe to share between threads.
+ */
+public class EncodedMessage
+{
+  private final byte[] line;
+  private final Object supersede_key;
+
+  public EncodedMessage(JSONObject msg)
+  {
+    this(msg, null);
+  }
+
+  /**
+   * A queued message can be dropped in favor of a later one with the
+   * same supersede key, like status notifications for one scripthash.
+   */
+  public EncodedMessage(JSONObject msg, Object supersede_key)
+  {
+    this.supersede_key = supersede_key;
+    try
+    {
+      line = (msg.toString(0) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    catch(org.json.JSONException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The line must already end with a newline
+   */
+  public EncodedMessage(byte[] line)
+  {
+    this.line = line;
+    this.supersede_key = null;
+  }
+
+  /**
+   * A reply made from a result that is already encoded
+   */
+  public static EncodedMessage forResult(Object request_id, byte[] result)
+  {
+    String head;
+    try
+    {
+      head = "{\"id\":" + JSONObject.valueToString(request_id == null ? JSONObject.NULL : request_id)
+        + ",\"jsonrpc\":\"2.0\",\"result\":";
+    }
+    catch(org.json.JSONException e)
+    {
+      throw new RuntimeException(e);
+    }
+    byte[] head_b = head.getBytes(StandardCharsets.UTF_8);
+    byte[] line = new byte[head_b.length + result.length + 2];
+    System.arraycopy(head_b, 0, line, 0, head_b.length);
+    System.arraycopy(result, 0, line, head_b.length, result.length);
+    line[line.length - 2] = '}';
+    line[line.length - 1] = '\n';
+    return new EncodedMessage(line);
+  }
+
+  /**
+   * Includes the trailing newline.  Callers must not modify it.
+   */
+  public byte[] getBytes()
+  {
+    return line;
+  }
+
+  public Object getSupersedeKey()
+  {
+    return supersede_key;
+  }
+
+  public int size()
+  {
+    return line.length;
+  }
+
+  public String toString()
+  {
+    return new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+  }
+
+}
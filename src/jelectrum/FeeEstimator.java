@@ -0,0 +1,88 @@
+package jelectrum;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers blockchain.estimatefee from memory.
+ *
+ * bitcoind estimatesmartfee is asked at most once per target per block,
+ * its answers are cached until the chain head moves.  If bitcoind has no
+ * estimate (fresh node, regtest), can't be reached or isn't configured,
+ * fall back to what it would take to get into the next few blocks based
+ * on the mempool fee histogram.  That is remembered per block too, so
+ * bitcoind isn't asked again until the next one, but the histogram answer
+ * itself is worked out fresh each time since the mempool keeps moving.
+ */
+public class FeeEstimator
+{
+  public static final int MAX_TARGET=1008;
+
+  private Jelectrum jelly;
+
+  // NO_ESTIMATE means bitcoind had nothing for this target at this height
+  private static final double NO_ESTIMATE=-1.0;
+  private Map<Integer, Double> cache = new HashMap<>();
+  private int cache_height = -1;
+
+  public FeeEstimator(Jelectrum jelly)
+  {
+    this.jelly = jelly;
+  }
+
+  /**
+   * Fee rate in BTC per kilobyte, or -1 if there is no idea
+   */
+  public double getFeeEstimate(int blocks)
+  {
+    blocks = Math.max(1, Math.min(MAX_TARGET, blocks));
+
+    int height = jelly.getElectrumNotifier().getHeadHeight();
+    Double cached;
+    synchronized(this)
+    {
+      if (height != cache_height)
+      {
+        cache.clear();
+        cache_height = height;
+      }
+      cached = cache.get(blocks);
+    }
+    if (cached != null)
+    {
+      if (cached > 0.0) return cached;
+      return getHistogramEstimate(blocks);
+    }
+
+    // Not holding the lock, a slow bitcoind only holds up this caller
+    double fee = NO_ESTIMATE;
+    BitcoinRPC rpc = jelly.getBitcoinRPC();
+    if (rpc != null)
+    {
+      try
+      {
+        fee = rpc.getFeeEstimate(blocks);
+      }
+      catch(Exception e)
+      {
+        jelly.getEventLog().log("FeeEstimator: no estimate from bitcoind for " + blocks + " - " + e);
+      }
+    }
+    if (fee <= 0.0) fee = NO_ESTIMATE;
+
+    synchronized(this)
+    {
+      if (cache_height == height) cache.put(blocks, fee);
+    }
+    if (fee > 0.0) return fee;
+    return getHistogramEstimate(blocks);
+  }
+
+  private double getHistogramEstimate(int blocks)
+  {
+    double rate = jelly.getMemPooler().getStore().getFeeHistogram().estimateFeeRate(blocks);
+    // sat/vbyte to BTC/kB, not below the 1 sat/vbyte relay minimum
+    return Math.max(rate, 1.0) * 1000.0 / 1e8;
+  }
+
+}
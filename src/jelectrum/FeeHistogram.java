@@ -0,0 +1,114 @@
+package jelectrum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mempool vsize by fee rate, kept in fixed logarithmic buckets so adding
+ * and removing a transaction is O(1).
+ *
+ * The compacted form for mempool.get_fee_histogram is rebuilt lazily
+ * only when something changed since the last request.
+ */
+public class FeeHistogram
+{
+  /** Each bucket spans 5% of fee rate, starting at 1 sat/vbyte */
+  public static final double BUCKET_RATIO=1.05;
+  public static final int BUCKETS=200;
+
+  /** Same compaction as electrumx, first bin of 100k vbytes growing 10% each */
+  public static final long FIRST_BIN_SIZE=100000L;
+
+  public static final long BLOCK_VSIZE=1000000L;
+
+  private final long[] bucket_vsize = new long[BUCKETS];
+  private long total_vsize;
+  private long total_fee;
+
+  private List<double[]> compact;
+
+  public synchronized void add(long fee, int vsize)
+  {
+    if (vsize <= 0) return;
+    bucket_vsize[getBucket(fee, vsize)] += vsize;
+    total_vsize += vsize;
+    total_fee += fee;
+    compact = null;
+  }
+
+  public synchronized void remove(long fee, int vsize)
+  {
+    if (vsize <= 0) return;
+    bucket_vsize[getBucket(fee, vsize)] -= vsize;
+    total_vsize -= vsize;
+    total_fee -= fee;
+    compact = null;
+  }
+
+  public synchronized long getTotalVSize() { return total_vsize; }
+  public synchronized long getTotalFee() { return total_fee; }
+
+  /**
+   * Pairs of [fee rate in sat/vbyte, vsize], highest fee rate first.
+   * Each pair is the lower fee rate bound of a range and the vsize of
+   * transactions in that range.
+   */
+  public synchronized List<double[]> getCompactHistogram()
+  {
+    if (compact != null) return compact;
+
+    ArrayList<double[]> lst = new ArrayList<>();
+    double bin_size = FIRST_BIN_SIZE;
+    long r = 0;
+    double prev_rate = 0;
+    for(int i=BUCKETS-1; i>=0; i--)
+    {
+      long sz = bucket_vsize[i];
+      if (sz == 0) continue;
+      if ((r > 0) && (r + sz > bin_size))
+      {
+        lst.add(new double[]{prev_rate, r});
+        r = 0;
+        bin_size *= 1.1;
+      }
+      r += sz;
+      prev_rate = getBucketRate(i);
+    }
+    if (r > 0) lst.add(new double[]{prev_rate, r});
+
+    compact = java.util.Collections.unmodifiableList(lst);
+    return compact;
+  }
+
+  /**
+   * Fee rate in sat/vbyte needed to get into roughly the next 'blocks'
+   * blocks if nothing else arrives.  Returns 0 if the mempool wouldn't
+   * fill that many blocks.
+   */
+  public synchronized double estimateFeeRate(int blocks)
+  {
+    long target = BLOCK_VSIZE * Math.max(1, blocks);
+    long r = 0;
+    for(int i=BUCKETS-1; i>=0; i--)
+    {
+      r += bucket_vsize[i];
+      if (r >= target) return getBucketRate(i);
+    }
+    return 0.0;
+  }
+
+  public static double getBucketRate(int bucket)
+  {
+    if (bucket == 0) return 0.0;
+    return Math.pow(BUCKET_RATIO, bucket - 1);
+  }
+
+  public static int getBucket(long fee, int vsize)
+  {
+    double rate = (double)fee / (double)vsize;
+    if (rate < 1.0) return 0;
+    int b = 1 + (int)Math.floor(Math.log(rate) / Math.log(BUCKET_RATIO));
+    return Math.min(b, BUCKETS-1);
+  }
+
+}
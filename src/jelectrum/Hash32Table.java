@@ -0,0 +1,206 @@
+package jelectrum;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Open addressing hash table from 32 byte keys (tx hashes, scripthashes)
+ * to non-negative int values.
+ *
+ * Keys are packed four longs to a slot so there is no object per entry.
+ * Linear probing with backward shift deletion, so no tombstones pile up
+ * as the mempool churns.  Lookups don't allocate.
+ *
+ * Not thread safe, callers do their own locking.
+ */
+public class Hash32Table
+{
+  public static final int KEY_SIZE=32;
+
+  private long[] keys;
+  private int[] vals;
+  private int mask;
+  private int size;
+
+  public Hash32Table(int initial_size)
+  {
+    int cap = 16;
+    while(cap < initial_size * 2) cap*=2;
+    allocate(cap);
+  }
+
+  private void allocate(int cap)
+  {
+    keys = new long[cap * 4];
+    vals = new int[cap];
+    java.util.Arrays.fill(vals, -1);
+    mask = cap - 1;
+    size = 0;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public int get(byte[] key)
+  {
+    checkLen(key.length);
+    return find(readLong(key, 0), readLong(key, 8), readLong(key, 16), readLong(key, 24));
+  }
+
+  public int get(ByteString key)
+  {
+    checkLen(key.size());
+    return find(readLong(key, 0), readLong(key, 8), readLong(key, 16), readLong(key, 24));
+  }
+
+  public int get(long[] src, int off)
+  {
+    return find(src[off], src[off+1], src[off+2], src[off+3]);
+  }
+
+  /**
+   * Returns the previous value or -1
+   */
+  public int put(long k0, long k1, long k2, long k3, int val)
+  {
+    if (val < 0) throw new IllegalArgumentException("Values must be non-negative");
+    if ((size + 1) * 2 > vals.length) grow();
+
+    int slot = slotFor(k0);
+    while(vals[slot] >= 0)
+    {
+      if (keyEquals(slot, k0, k1, k2, k3))
+      {
+        int old = vals[slot];
+        vals[slot] = val;
+        return old;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int p = slot * 4;
+    keys[p] = k0; keys[p+1] = k1; keys[p+2] = k2; keys[p+3] = k3;
+    vals[slot] = val;
+    size++;
+    return -1;
+  }
+
+  /**
+   * Returns the removed value or -1
+   */
+  public int remove(long k0, long k1, long k2, long k3)
+  {
+    int slot = slotFor(k0);
+    while(vals[slot] >= 0)
+    {
+      if (keyEquals(slot, k0, k1, k2, k3))
+      {
+        int old = vals[slot];
+        shiftBack(slot);
+        size--;
+        return old;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int find(long k0, long k1, long k2, long k3)
+  {
+    int slot = slotFor(k0);
+    while(vals[slot] >= 0)
+    {
+      if (keyEquals(slot, k0, k1, k2, k3)) return vals[slot];
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Close the gap left at 'hole' by pulling back any entries in the
+   * probe run that would no longer be reachable
+   */
+  private void shiftBack(int hole)
+  {
+    int slot = (hole + 1) & mask;
+    while(vals[slot] >= 0)
+    {
+      int home = slotFor(keys[slot*4]);
+      // Move if the hole lies cyclically between home and slot
+      boolean move;
+      if (hole <= slot) move = (home <= hole) || (home > slot);
+      else move = (home <= hole) && (home > slot);
+
+      if (move)
+      {
+        System.arraycopy(keys, slot*4, keys, hole*4, 4);
+        vals[hole] = vals[slot];
+        hole = slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    vals[hole] = -1;
+  }
+
+  private void grow()
+  {
+    long[] old_keys = keys;
+    int[] old_vals = vals;
+    allocate(old_vals.length * 2);
+    for(int i=0; i<old_vals.length; i++)
+    {
+      if (old_vals[i] >= 0)
+      {
+        int p = i*4;
+        put(old_keys[p], old_keys[p+1], old_keys[p+2], old_keys[p+3], old_vals[i]);
+      }
+    }
+  }
+
+  private int slotFor(long k0)
+  {
+    long h = k0 * 0x9E3779B97F4A7C15L;
+    return (int)(h >>> 32) & mask;
+  }
+
+  private boolean keyEquals(int slot, long k0, long k1, long k2, long k3)
+  {
+    int p = slot * 4;
+    return (keys[p] == k0) && (keys[p+1] == k1) && (keys[p+2] == k2) && (keys[p+3] == k3);
+  }
+
+  private static void checkLen(int len)
+  {
+    if (len != KEY_SIZE) throw new IllegalArgumentException("Keys must be 32 bytes, not " + len);
+  }
+
+  public static long readLong(byte[] b, int off)
+  {
+    long v = 0;
+    for(int i=0; i<8; i++)
+    {
+      v = (v << 8) | (b[off+i] & 0xffL);
+    }
+    return v;
+  }
+
+  public static long readLong(ByteString b, int off)
+  {
+    long v = 0;
+    for(int i=0; i<8; i++)
+    {
+      v = (v << 8) | (b.byteAt(off+i) & 0xffL);
+    }
+    return v;
+  }
+
+  public static void writeLong(long v, byte[] b, int off)
+  {
+    for(int i=7; i>=0; i--)
+    {
+      b[off+i] = (byte)v;
+      v = v >>> 8;
+    }
+  }
+
+}
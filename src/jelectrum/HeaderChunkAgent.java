@@ -1,7 +1,7 @@
 package jelectrum;
 
-import org.apache.commons.codec.binary.Hex;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Sha256Hash;
 
@@ -10,25 +10,60 @@ public class HeaderChunkAgent extends Thread
 {
     private Jelectrum jelly;
     private volatile int height;
-    private int last_saved_height;
+    private volatile int last_complete_chunk = -1;
+    private long pokes;
+    private HeaderFile header_file;
+    private HeaderMerkle header_merkle;
 
     public HeaderChunkAgent(Jelectrum jelly)
+        throws java.io.IOException
     {
         this.jelly = jelly;
         setName("HeaderChunkAgent");
         setDaemon(true);
 
+        String path = "headers.dat";
+        if (jelly.getConfig().isSet("header_file_path"))
+        {
+          path = jelly.getConfig().get("header_file_path");
+        }
+        header_file = new HeaderFile(new File(path));
+
+        header_merkle = new HeaderMerkle();
+        for(int i=0; i<header_file.getCount(); i++)
+        {
+            header_merkle.add(Sha256Hash.hashTwice(header_file.getHeader(i)));
+        }
+
+    }
+
+    /**
+     * Kept in step with the header file
+     */
+    public HeaderMerkle getHeaderMerkle()
+    {
+        return header_merkle;
     }
 
-    public String getChunk(int index)
+    public HeaderFile getHeaderFile()
     {
-        return jelly.getDB().getHeaderChunkMap().get(index);
+        return header_file;
+    }
+
+    /**
+     * The raw headers of the chunk, straight from the header file.
+     * Null if the chain doesn't reach the chunk yet.
+     */
+    public ByteBuffer getChunk(int index)
+    {
+        return header_file.getRange(index * 2016, 2016);
     }
     public void poke(int new_height)
     {
         height = new_height;
         synchronized(this)
         {
+            pokes++;
             this.notifyAll();
         }
        
@@ -40,6 +75,11 @@ public class HeaderChunkAgent extends Thread
 
         while(true)
         {
+            long seen;
+            synchronized(this)
+            {
+                seen = pokes;
+            }
             try
             {
                 if (first)
@@ -58,7 +98,8 @@ public class HeaderChunkAgent extends Thread
             {
                 synchronized(this)
                 {
-                    this.wait();
+                    // A poke during the pass isn't lost
+                    if (pokes == seen) this.wait();
                 }
             }
             catch(java.lang.InterruptedException e)
@@ -70,60 +111,63 @@ public class HeaderChunkAgent extends Thread
 
 
     }
+    /**
+     * Only looks at the tip of the header file.  New headers are appended
+     * and, after a reorg, headers no longer on the main chain are dropped
+     * back to where the file and the chain agree.
+     */
     private void doPass()
-        throws org.bitcoinj.store.BlockStoreException
+        throws org.bitcoinj.store.BlockStoreException, java.io.IOException
     {
         int h = height;
-        for(int i=0; i<h; i+=2016)
-        {
-            int index= i /2016;
-            //System.out.println("index: " + index+ " i: " + i + " h: " + h);
-            //if (i+2016 <= h)
-            {
-                checkChunk(i/2016);
-                last_saved_height = i+2016;
-            }
-        }
-
-
-    }
 
-    private void checkChunk(int index)
-        throws org.bitcoinj.store.BlockStoreException
-    {
+        int count = header_file.getCount();
+        int keep = Math.min(count, h + 1);
+        while((keep > 0) && (!isOnMainChain(keep - 1))) keep--;
+        if (keep < count)
         {
-          String old = jelly.getDB().getHeaderChunkMap().get(index);
-          if ((old != null) && (old.length() == 2 * 2016 * 80)) return;
+            jelly.getEventLog().log("HeaderChunkAgent: dropping headers from " + keep + " to " + (count - 1));
+            header_file.truncate(keep);
+            header_merkle.truncate(keep);
         }
 
-        jelly.getEventLog().log("Building header chunk " + index);
-
-        ByteArrayOutputStream b_out = new ByteArrayOutputStream();
-        int start = index * 2016;
-        for(int i=0; i<2016; i++)
+        int added = 0;
+        for(int i=header_file.getCount(); i<=h; i++)
         {
-            if (start+i <= height)
+            Sha256Hash hash = jelly.getBlockChainCache().getBlockHashAtHeight(i);
+            if (hash == null)
             {
-                Sha256Hash hash = jelly.getBlockChainCache().getBlockHashAtHeight(start+i);
-                if (hash == null) {
-                  int h = start+i;
-                  System.out.println("unable to find hash for height: " + h);
-                }
-                StoredBlock blk = jelly.getBlockStore().get(hash);
-                byte[] b = blk.getHeader().bitcoinSerialize();
-
-                b_out.write(b,0,80);
+              jelly.getEventLog().alarm("HeaderChunkAgent: unable to find hash for height: " + i);
+              break;
             }
+            StoredBlock blk = jelly.getBlockStore().get(hash);
+            byte[] header = blk.getHeader().bitcoinSerialize();
+            header_file.put(i, header);
+            header_merkle.add(Sha256Hash.hashTwice(header, 0, HeaderFile.HEADER_SIZE));
+            added++;
 
+            if ((i + 1) % 2016 == 0)
+            {
+              last_complete_chunk = i / 2016;
+              if (added > 2016) jelly.getEventLog().log("Built header chunk " + last_complete_chunk);
+            }
         }
-        byte[] buff = b_out.toByteArray();
-
-        String chunk = new String(Hex.encodeHex(buff));
-        
-        jelly.getDB().getHeaderChunkMap().put(index, chunk);
-
+        if (added > 0) header_file.force();
+        last_complete_chunk = header_file.getCount() / 2016 - 1;
     }
 
+    private boolean isOnMainChain(int h)
+    {
+        Sha256Hash hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header_file.getHeader(h)));
+        return hash.equals(jelly.getBlockChainCache().getBlockHashAtHeight(h));
+    }
 
+    /**
+     * Index of the last chunk with all 2016 headers, -1 if none yet
+     */
+    public int getLastCompleteChunk()
+    {
+        return last_complete_chunk;
+    }
 
 }
@@ -0,0 +1,142 @@
+package jelectrum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Every block header of the main chain in one flat file, 80 bytes per
+ * height, memory mapped.  Readers get views straight onto the mapped
+ * region so serving a chunk doesn't copy it anywhere first.
+ *
+ * The file is grown in steps ahead of the chain, the unused tail is zeros.
+ * On load the count is found by skipping back over zero headers.
+ *
+ * One thread writes, any number read.
+ */
+public class HeaderFile
+{
+  public static final int HEADER_SIZE=80;
+  private static final long GROW_BYTES=16L * 1048576L;
+
+  private final FileChannel channel;
+  private volatile MappedByteBuffer map;
+  private volatile int count;
+
+  public HeaderFile(File f)
+    throws IOException
+  {
+    channel = new RandomAccessFile(f, "rw").getChannel();
+    long size = channel.size() / HEADER_SIZE * HEADER_SIZE;
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, GROW_BYTES));
+
+    int n = (int)(size / HEADER_SIZE);
+    while((n > 0) && (isZero(n - 1))) n--;
+    count = n;
+  }
+
+  /**
+   * Heights 0 to count-1 are present
+   */
+  public int getCount()
+  {
+    return count;
+  }
+
+  public void put(int height, byte[] header)
+    throws IOException
+  {
+    if (height > count) throw new IOException("Header at " + height + " would leave a gap, have " + count);
+    if (header.length < HEADER_SIZE) throw new IOException("Short header " + header.length);
+
+    long end = (long)(height + 1) * HEADER_SIZE;
+    if (end > map.capacity())
+    {
+      map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (end / GROW_BYTES + 1) * GROW_BYTES);
+    }
+    ByteBuffer b = map.duplicate();
+    b.position(height * HEADER_SIZE);
+    b.put(header, 0, HEADER_SIZE);
+
+    if (height == count) count = height + 1;
+  }
+
+  /**
+   * Drops every header from the height on, for a reorg
+   */
+  public void truncate(int height)
+  {
+    if (height >= count) return;
+    int old = count;
+    count = height;
+
+    ByteBuffer b = map.duplicate();
+    b.position(height * HEADER_SIZE);
+    for(long i=(long)height * HEADER_SIZE; i<(long)old * HEADER_SIZE; i++) b.put((byte)0);
+  }
+
+  public byte[] getHeader(int height)
+  {
+    if ((height < 0) || (height >= count)) return null;
+    byte[] h = new byte[HEADER_SIZE];
+    ByteBuffer b = map.duplicate();
+    b.position(height * HEADER_SIZE);
+    b.get(h);
+    return h;
+  }
+
+  /**
+   * A read only view of up to n headers from start, fewer if the chain
+   * doesn't go that far.  Null if start is past the end.
+   */
+  public ByteBuffer getRange(int start, int n)
+  {
+    int c = count;
+    if ((start < 0) || (start >= c)) return null;
+    int end = (int)Math.min((long)start + n, c);
+
+    ByteBuffer b = map.asReadOnlyBuffer();
+    b.limit(end * HEADER_SIZE);
+    b.position(start * HEADER_SIZE);
+    return b.slice();
+  }
+
+  /**
+   * Raw headers out to a channel, for transports that can take binary.
+   * Returns the bytes sent.
+   */
+  public long transferTo(int start, int n, WritableByteChannel out)
+    throws IOException
+  {
+    int c = count;
+    if ((start < 0) || (start >= c)) return 0L;
+    long pos = (long)start * HEADER_SIZE;
+    long len = (Math.min((long)start + n, c) - start) * HEADER_SIZE;
+    long sent = 0;
+    while(sent < len)
+    {
+      sent += channel.transferTo(pos + sent, len - sent, out);
+    }
+    return sent;
+  }
+
+  public void force()
+  {
+    map.force();
+  }
+
+  private boolean isZero(int height)
+  {
+    int p = height * HEADER_SIZE;
+    for(int i=0; i<HEADER_SIZE; i++)
+    {
+      if (map.get(p + i) != 0) return false;
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,142 @@
+package jelectrum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * Merkle tree over the block header hashes of the main chain, for the
+ * cp_height checkpoint proofs of blockchain.block.header(s).
+ *
+ * Each level keeps only the nodes whose whole subtree is present, so
+ * adding a block hashes at most one node per level.  A root or branch for
+ * a prefix of the chain (up to cp_height) reuses those and only hashes the
+ * nodes along the right edge of the prefix, O(log n) with no DB reads.
+ *
+ * Odd nodes pair with themselves, as in the transaction merkle tree.
+ * Hashes are in internal byte order.
+ */
+public class HeaderMerkle
+{
+  private final ArrayList<Level> levels = new ArrayList<>();
+
+  public synchronized int size()
+  {
+    if (levels.isEmpty()) return 0;
+    return levels.get(0).count;
+  }
+
+  public synchronized void add(byte[] hash)
+  {
+    byte[] node = hash;
+    for(int k=0; ; k++)
+    {
+      if (k == levels.size()) levels.add(new Level());
+      Level lvl = levels.get(k);
+      lvl.add(node);
+
+      // A left child waits for its sibling
+      if ((lvl.count & 1) == 1) return;
+      node = hashPair(lvl.get(lvl.count - 2), lvl.get(lvl.count - 1));
+    }
+  }
+
+  /**
+   * Keeps the first n leaves, for a reorg
+   */
+  public synchronized void truncate(int n)
+  {
+    for(int k=0; k<levels.size(); k++)
+    {
+      Level lvl = levels.get(k);
+      lvl.count = Math.min(lvl.count, n >> k);
+    }
+  }
+
+  /**
+   * Root of the tree over the first length leaves
+   */
+  public synchronized byte[] getRoot(int length)
+  {
+    checkLength(length);
+    return node(getDepth(length), 0, length);
+  }
+
+  /**
+   * Sibling hashes from the leaf up, for the tree over the first length leaves
+   */
+  public synchronized List<byte[]> getBranch(int index, int length)
+  {
+    checkLength(length);
+    if ((index < 0) || (index >= length)) throw new IllegalArgumentException("Index " + index + " outside of " + length);
+
+    ArrayList<byte[]> branch = new ArrayList<>();
+    int depth = getDepth(length);
+    for(int k=0; k<depth; k++)
+    {
+      int j = index >> k;
+      byte[] sib = node(k, j ^ 1, length);
+      if (sib == null) sib = node(k, j, length);
+      branch.add(sib);
+    }
+    return branch;
+  }
+
+  public static int getDepth(int length)
+  {
+    int d = 0;
+    while((1L << d) < length) d++;
+    return d;
+  }
+
+  public static byte[] hashPair(byte[] left, byte[] right)
+  {
+    return Sha256Hash.hashTwice(left, 0, 32, right, 0, 32);
+  }
+
+  private void checkLength(int length)
+  {
+    if ((length < 1) || (length > size())) throw new IllegalArgumentException("Length " + length + " outside of " + size());
+  }
+
+  /**
+   * Node j at level k of the tree over the first length leaves, null if
+   * it is entirely past the end
+   */
+  private byte[] node(int k, int j, int length)
+  {
+    long start = ((long)j) << k;
+    if (start >= length) return null;
+    long end = ((long)j + 1) << k;
+    if (end <= length) return levels.get(k).get(j);
+
+    byte[] left = node(k - 1, 2 * j, length);
+    byte[] right = node(k - 1, 2 * j + 1, length);
+    if (right == null) right = left;
+    return hashPair(left, right);
+  }
+
+  private static class Level
+  {
+    byte[] data = new byte[32 * 1024];
+    int count;
+
+    void add(byte[] hash)
+    {
+      if ((count + 1) * 32 > data.length)
+      {
+        data = Arrays.copyOf(data, data.length * 2);
+      }
+      System.arraycopy(hash, 0, data, count * 32, 32);
+      count++;
+    }
+
+    byte[] get(int j)
+    {
+      return Arrays.copyOfRange(data, j * 32, j * 32 + 32);
+    }
+  }
+
+}
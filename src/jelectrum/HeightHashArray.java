@@ -0,0 +1,118 @@
+package jelectrum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * Block hashes by height in one flat byte array, 32 bytes each, mirrored
+ * to a file of the same layout so it comes back quickly on restart.
+ *
+ * Reads take no locks.  Appends publish a new array only when it grows;
+ * replacing hashes (a reorg), or writing below a height a reader may still
+ * see from before a truncate, copies the array first, once for the whole
+ * run given to setAll(), so a reader never sees half of one hash and
+ * half of another.  One writer at a time.
+ */
+public class HeightHashArray
+{
+  public static final int HASH_SIZE=32;
+
+  private final RandomAccessFile file;
+  private volatile byte[] data;
+  private volatile int count;
+  // heights below this may still be read through a count from before truncate()
+  private int stale_end;
+
+  public HeightHashArray(File f)
+    throws IOException
+  {
+    file = new RandomAccessFile(f, "rw");
+    int n = (int)(file.length() / HASH_SIZE);
+    byte[] d = new byte[Math.max(n, 1024) * HASH_SIZE];
+    file.seek(0);
+    file.readFully(d, 0, n * HASH_SIZE);
+    data = d;
+    count = n;
+  }
+
+  public int size()
+  {
+    return count;
+  }
+
+  public Sha256Hash get(int height)
+  {
+    // count before data, see set()
+    int c = count;
+    if ((height < 0) || (height >= c)) return null;
+    byte[] d = data;
+    return Sha256Hash.wrap(Arrays.copyOfRange(d, height * HASH_SIZE, (height + 1) * HASH_SIZE));
+  }
+
+  /**
+   * Sets the hash at a height up to size(), writing it through to the file
+   */
+  public void set(int height, Sha256Hash hash)
+    throws IOException
+  {
+    setAll(height, Collections.singletonList(hash));
+  }
+
+  /**
+   * Sets the hashes at start and the heights after it, start at most
+   * size().  Readers see either none or all of them.
+   */
+  public void setAll(int start, List<Sha256Hash> hashes)
+    throws IOException
+  {
+    int c = count;
+    if ((start < 0) || (start > c)) throw new IOException("Height " + start + " would leave a gap, have " + c);
+    if (hashes.isEmpty()) return;
+    int end = start + hashes.size();
+
+    byte[] d = data;
+    if (end * HASH_SIZE > d.length)
+    {
+      int len = d.length;
+      while(end * HASH_SIZE > len) len *= 2;
+      d = Arrays.copyOf(d, len);
+      stale_end = 0;
+    }
+    else if (start < Math.max(c, stale_end))
+    {
+      d = Arrays.copyOf(d, d.length);
+      stale_end = 0;
+    }
+    for(int i=0; i<hashes.size(); i++)
+    {
+      System.arraycopy(hashes.get(i).getBytes(), 0, d, (start + i) * HASH_SIZE, HASH_SIZE);
+    }
+
+    // data before count, so a reader that sees the new count sees the hashes
+    data = d;
+    if (end > c) count = end;
+
+    file.seek((long)start * HASH_SIZE);
+    file.write(d, start * HASH_SIZE, end * HASH_SIZE - start * HASH_SIZE);
+  }
+
+  /**
+   * Keeps only heights below n
+   */
+  public void truncate(int n)
+    throws IOException
+  {
+    int c = count;
+    if (n >= c) return;
+    stale_end = Math.max(stale_end, c);
+    count = n;
+    file.setLength((long)n * HASH_SIZE);
+  }
+
+}
@@ -39,6 +39,9 @@ public class Jelectrum
     private UtxoSource utxo_source;
     private PeerManager peer_manager;
     private MemPooler mem_pooler;
+    private BlockDownloadThread block_download_thread;
+    private FeeEstimator fee_estimator;
+    private ResponseCache response_cache;
 
     private volatile boolean caught_up=false;
 
@@ -125,6 +128,8 @@ public class Jelectrum
         
         utxo_source = new SimpleUtxoMgr(this);
 
+        response_cache = ResponseCache.create(config);
+
         notifier = new ElectrumNotifier(this);
         
         importer = new Importer(network_params, this, block_store);
@@ -142,6 +147,10 @@ public class Jelectrum
 
         mem_pooler = new MemPooler(this);
 
+        fee_estimator = new FeeEstimator(this);
+
+        block_download_thread = new BlockDownloadThread(this);
+
     }
 
 
@@ -171,7 +180,15 @@ public class Jelectrum
 
         mem_pooler.start();
         
-        new BlockDownloadThread(this).start();
+        block_download_thread.start();
+
+        if (config.isSet("bitcoind_zmq_url"))
+        {
+          for(String url : config.getList("bitcoind_zmq_url"))
+          {
+            new ZmqSubscriber(event_log, url, ZmqSubscriber.BITCOIND_TOPICS, new BitcoindZmqListener(this)).start();
+          }
+        }
 
 
         /*System.out.println("Starting bitcoin peer download");
@@ -369,6 +386,18 @@ public class Jelectrum
     {
       return mem_pooler;
     }
+    public FeeEstimator getFeeEstimator()
+    {
+      return fee_estimator;
+    }
+    public ResponseCache getResponseCache()
+    {
+      return response_cache;
+    }
+    public BlockDownloadThread getBlockDownloadThread()
+    {
+      return block_download_thread;
+    }
 
     private volatile boolean space_limited;
     public void setSpaceLimited(boolean limited)
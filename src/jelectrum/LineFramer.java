@@ -0,0 +1,133 @@
+package jelectrum;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a byte stream into newline terminated lines, reading into one
+ * buffer that is reused for every line.  The buffer grows as needed up to
+ * the maximum line size, past that the line is refused rather than read
+ * into memory.
+ *
+ * Not thread safe, meant to be owned by the one thread reading a socket.
+ */
+public class LineFramer
+{
+  private static final int INITIAL_SIZE=8192;
+
+  private final InputStream in;
+  private final int max_line;
+
+  private byte[] buf = new byte[INITIAL_SIZE];
+  private int start;
+  private int end;
+  private int scan;
+
+  private int line_start;
+  private int line_len;
+
+  public LineFramer(InputStream in, int max_line)
+  {
+    this.in = in;
+    this.max_line = max_line;
+  }
+
+  public static class LineTooLongException extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    public LineTooLongException(int max_line)
+    {
+      super("Line longer than " + max_line + " bytes");
+    }
+  }
+
+  /**
+   * Reads up to the next newline.  Returns false at the end of the stream.
+   * The line, without the newline or a trailing carriage return, is in
+   * getBuffer() at getLineStart() for getLineLength() bytes until the next call.
+   */
+  public boolean nextLine()
+    throws IOException
+  {
+    while(true)
+    {
+      for(; scan < end; scan++)
+      {
+        if (buf[scan] == '\n')
+        {
+          setLine(start, scan);
+          scan++;
+          start = scan;
+          return true;
+        }
+      }
+      // Room for a carriage return on a line right at the limit
+      if (scan - start > max_line + 1) throw new LineTooLongException(max_line);
+
+      makeRoom();
+      int r = in.read(buf, end, buf.length - end);
+      if (r < 0)
+      {
+        // Last line without a newline
+        if (end > start)
+        {
+          setLine(start, end);
+          start = end;
+          scan = end;
+          return true;
+        }
+        return false;
+      }
+      end += r;
+    }
+  }
+
+  public byte[] getBuffer() { return buf; }
+  public int getLineStart() { return line_start; }
+  public int getLineLength() { return line_len; }
+
+  public String getLineString()
+  {
+    return new String(buf, line_start, line_len, StandardCharsets.UTF_8);
+  }
+
+  private void setLine(int from, int to)
+  {
+    if ((to > from) && (buf[to-1] == '\r')) to--;
+    line_start = from;
+    line_len = to - from;
+  }
+
+  /**
+   * Moves the partial line to the front of the buffer, growing it only if
+   * the partial line already fills it
+   */
+  private void makeRoom()
+  {
+    if (end < buf.length) return;
+
+    int partial = end - start;
+    if ((partial == buf.length) || (buf.length > INITIAL_SIZE && partial < INITIAL_SIZE))
+    {
+      // Grow for a long line, or drop back down once it has gone by
+      int size = INITIAL_SIZE;
+      while(size <= partial) size *= 2;
+      size = Math.min(size, max_line + 2);
+      size = Math.max(size, partial + 1);
+
+      byte[] n = new byte[size];
+      System.arraycopy(buf, start, n, 0, partial);
+      buf = n;
+    }
+    else
+    {
+      System.arraycopy(buf, start, buf, 0, partial);
+    }
+    scan -= start;
+    end = partial;
+    start = 0;
+  }
+
+}
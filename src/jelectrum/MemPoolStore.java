@@ -0,0 +1,410 @@
+package jelectrum;
+
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import com.google.protobuf.ByteString;
+
+/**
+ * Compact index of the mempool.
+ *
+ * Transactions and scripthashes each get an int slot, looked up through
+ * a Hash32Table.  The scripthash to transaction relation is a pool of
+ * int edges chained per scripthash, and each transaction keeps a packed
+ * int array of the scripthash slots it touches so it can be unlinked again.
+ * A mempool of N transactions is a handful of primitive arrays plus one
+ * small int[] per transaction, instead of a few dozen objects each.
+ *
+ * Lookups (contains, counts, areSomeInputsPending) don't allocate.
+ *
+ * Fee and vsize are kept per transaction (when known) and feed a
+ * FeeHistogram that is updated as transactions come and go.
+ *
+ * All methods are synchronized.  There is expected to be a single writer
+ * (the MemPooler thread).
+ */
+public class MemPoolStore
+{
+  private static final int[] NO_SLOTS = new int[0];
+
+  public static final int SNAPSHOT_MAGIC=0x4a4d5053;
+  public static final int SNAPSHOT_VERSION=2;
+
+  private Hash32Table tx_table;
+  private long[] tx_keys;
+  private int[][] tx_sh;
+  private int[] tx_mark;
+  private long[] tx_fee;
+  private int[] tx_vsize;
+  private SlotPool tx_slots;
+  private int mark_epoch;
+
+  private Hash32Table sh_table;
+  private long[] sh_keys;
+  private int[] sh_head;
+  private int[] sh_count;
+  private SlotPool sh_slots;
+
+  private int[] edge_tx;
+  private int[] edge_next;
+  private SlotPool edge_slots;
+
+  private FeeHistogram fee_histogram = new FeeHistogram();
+
+  public MemPoolStore()
+  {
+    int cap = 1024;
+    tx_table = new Hash32Table(cap);
+    tx_keys = new long[cap * 4];
+    tx_sh = new int[cap][];
+    tx_mark = new int[cap];
+    tx_fee = new long[cap];
+    tx_vsize = new int[cap];
+    tx_slots = new SlotPool();
+
+    sh_table = new Hash32Table(cap);
+    sh_keys = new long[cap * 4];
+    sh_head = new int[cap];
+    sh_count = new int[cap];
+    sh_slots = new SlotPool();
+
+    edge_tx = new int[cap * 2];
+    edge_next = new int[cap * 2];
+    edge_slots = new SlotPool();
+  }
+
+  public synchronized int size()
+  {
+    return tx_table.size();
+  }
+
+  public synchronized int getScriptHashCount()
+  {
+    return sh_table.size();
+  }
+
+  public synchronized boolean containsTx(Sha256Hash tx_hash)
+  {
+    return tx_table.get(tx_hash.getBytes()) >= 0;
+  }
+
+  public FeeHistogram getFeeHistogram()
+  {
+    return fee_histogram;
+  }
+
+  /**
+   * Adds a transaction and the scripthashes it involves.
+   * A vsize of zero means the fee is unknown and the transaction
+   * is left out of the fee histogram.
+   * Returns false if it was already present.
+   */
+  public synchronized boolean addTx(Sha256Hash tx_hash, Collection<ByteString> scripthashes, long fee, int vsize)
+  {
+    byte[] h = tx_hash.getBytes();
+    if (tx_table.get(h) >= 0) return false;
+
+    int tx = tx_slots.alloc();
+    ensureTxCapacity(tx);
+    int p = tx*4;
+    for(int i=0; i<4; i++) tx_keys[p+i] = Hash32Table.readLong(h, i*8);
+    tx_table.put(tx_keys[p], tx_keys[p+1], tx_keys[p+2], tx_keys[p+3], tx);
+    tx_mark[tx] = mark_epoch;
+    tx_fee[tx] = fee;
+    tx_vsize[tx] = vsize;
+    fee_histogram.add(fee, vsize);
+
+    int[] shs = NO_SLOTS;
+    if (scripthashes.size() > 0)
+    {
+      shs = new int[scripthashes.size()];
+      int n = 0;
+      for(ByteString s : scripthashes)
+      {
+        if (s.size() != Hash32Table.KEY_SIZE) continue;
+        int sh = getOrAddScriptHash(s);
+        if (contains(shs, n, sh)) continue;
+        shs[n++] = sh;
+
+        int e = edge_slots.alloc();
+        ensureEdgeCapacity(e);
+        edge_tx[e] = tx;
+        edge_next[e] = sh_head[sh];
+        sh_head[sh] = e;
+        sh_count[sh]++;
+      }
+      if (n != shs.length) shs = Arrays.copyOf(shs, n);
+    }
+    tx_sh[tx] = shs;
+    return true;
+  }
+
+  /**
+   * Removes a transaction.  The scripthashes it involved are added
+   * to changed_out, if not null.  Returns false if it wasn't present.
+   */
+  public synchronized boolean removeTx(Sha256Hash tx_hash, Collection<ByteString> changed_out)
+  {
+    byte[] h = tx_hash.getBytes();
+    int tx = tx_table.get(h);
+    if (tx < 0) return false;
+
+    int p = tx*4;
+    tx_table.remove(tx_keys[p], tx_keys[p+1], tx_keys[p+2], tx_keys[p+3]);
+
+    for(int sh : tx_sh[tx])
+    {
+      if (changed_out != null) changed_out.add(getKeyBytes(sh_keys, sh));
+      unlink(sh, tx);
+    }
+    tx_sh[tx] = null;
+    fee_histogram.remove(tx_fee[tx], tx_vsize[tx]);
+    tx_slots.free(tx);
+    return true;
+  }
+
+  /**
+   * Adds the mempool transactions for a scripthash to out, returns how many
+   */
+  public synchronized int getTxForScriptHash(ByteString key, Collection<Sha256Hash> out)
+  {
+    if (key.size() != Hash32Table.KEY_SIZE) return 0;
+    int sh = sh_table.get(key);
+    if (sh < 0) return 0;
+
+    for(int e = sh_head[sh]; e >= 0; e = edge_next[e])
+    {
+      out.add(Sha256Hash.wrap(getKeyBytes(tx_keys, edge_tx[e]).toByteArray()));
+    }
+    return sh_count[sh];
+  }
+
+  public synchronized int getTxCountForScriptHash(ByteString key)
+  {
+    if (key.size() != Hash32Table.KEY_SIZE) return 0;
+    int sh = sh_table.get(key);
+    if (sh < 0) return 0;
+    return sh_count[sh];
+  }
+
+  public synchronized boolean areSomeInputsPending(Transaction tx)
+  {
+    List<TransactionInput> inputs = tx.getInputs();
+    for(int i=0; i<inputs.size(); i++)
+    {
+      TransactionInput tx_in = inputs.get(i);
+      if (tx_in.isCoinBase()) continue;
+
+      if (tx_table.get(tx_in.getOutpoint().getHash().getBytes()) >= 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Start a mark pass.  Mark everything that is still in the mempool,
+   * then getUnmarked() gives what has left.
+   */
+  public synchronized void startMarkPass()
+  {
+    mark_epoch++;
+  }
+
+  /**
+   * Returns true if the transaction is known (and marks it)
+   */
+  public synchronized boolean mark(Sha256Hash tx_hash)
+  {
+    int tx = tx_table.get(tx_hash.getBytes());
+    if (tx < 0) return false;
+    tx_mark[tx] = mark_epoch;
+    return true;
+  }
+
+  public synchronized List<Sha256Hash> getUnmarked()
+  {
+    ArrayList<Sha256Hash> lst = new ArrayList<>();
+    for(int tx=0; tx<tx_slots.high(); tx++)
+    {
+      if ((tx_sh[tx] != null) && (tx_mark[tx] != mark_epoch))
+      {
+        lst.add(Sha256Hash.wrap(getKeyBytes(tx_keys, tx).toByteArray()));
+      }
+    }
+    return lst;
+  }
+
+  /**
+   * Binary dump of everything, for a fast warm restart.
+   * Built in memory under the lock so the disk write can happen without it.
+   */
+  public synchronized byte[] getSnapshot()
+    throws IOException
+  {
+    ByteArrayOutputStream b_out = new ByteArrayOutputStream(64 + size() * 128);
+    DataOutputStream d_out = new DataOutputStream(b_out);
+    d_out.writeInt(SNAPSHOT_MAGIC);
+    d_out.writeInt(SNAPSHOT_VERSION);
+    d_out.writeInt(size());
+    for(int tx=0; tx<tx_slots.high(); tx++)
+    {
+      if (tx_sh[tx] == null) continue;
+      for(int i=0; i<4; i++) d_out.writeLong(tx_keys[tx*4+i]);
+      d_out.writeLong(tx_fee[tx]);
+      d_out.writeInt(tx_vsize[tx]);
+      d_out.writeInt(tx_sh[tx].length);
+      for(int sh : tx_sh[tx])
+      {
+        for(int i=0; i<4; i++) d_out.writeLong(sh_keys[sh*4+i]);
+      }
+    }
+    d_out.flush();
+    return b_out.toByteArray();
+  }
+
+  /**
+   * Adds everything from a snapshot.  Returns the number of transactions added.
+   */
+  public synchronized int loadSnapshot(byte[] data)
+    throws IOException
+  {
+    DataInputStream d_in = new DataInputStream(new ByteArrayInputStream(data));
+    if (d_in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a mempool snapshot");
+    int ver = d_in.readInt();
+    if (ver != SNAPSHOT_VERSION) throw new IOException("Unknown mempool snapshot version: " + ver);
+
+    int count = d_in.readInt();
+    int added = 0;
+    byte[] key = new byte[Hash32Table.KEY_SIZE];
+    for(int n=0; n<count; n++)
+    {
+      d_in.readFully(key);
+      Sha256Hash tx_hash = Sha256Hash.wrap(key.clone());
+      long fee = d_in.readLong();
+      int vsize = d_in.readInt();
+      int sh_count = d_in.readInt();
+      if (sh_count < 0) throw new IOException("Bad scripthash count in mempool snapshot: " + sh_count);
+      ArrayList<ByteString> shs = new ArrayList<>(sh_count);
+      for(int i=0; i<sh_count; i++)
+      {
+        d_in.readFully(key);
+        shs.add(ByteString.copyFrom(key));
+      }
+      if (addTx(tx_hash, shs, fee, vsize)) added++;
+    }
+    return added;
+  }
+
+  private int getOrAddScriptHash(ByteString s)
+  {
+    int sh = sh_table.get(s);
+    if (sh >= 0) return sh;
+
+    sh = sh_slots.alloc();
+    ensureShCapacity(sh);
+    int p = sh*4;
+    for(int i=0; i<4; i++) sh_keys[p+i] = Hash32Table.readLong(s, i*8);
+    sh_table.put(sh_keys[p], sh_keys[p+1], sh_keys[p+2], sh_keys[p+3], sh);
+    sh_head[sh] = -1;
+    sh_count[sh] = 0;
+    return sh;
+  }
+
+  private void unlink(int sh, int tx)
+  {
+    int prev = -1;
+    for(int e = sh_head[sh]; e >= 0; e = edge_next[e])
+    {
+      if (edge_tx[e] == tx)
+      {
+        if (prev < 0) sh_head[sh] = edge_next[e];
+        else edge_next[prev] = edge_next[e];
+        edge_slots.free(e);
+        sh_count[sh]--;
+        break;
+      }
+      prev = e;
+    }
+    if (sh_count[sh] == 0)
+    {
+      int p = sh*4;
+      sh_table.remove(sh_keys[p], sh_keys[p+1], sh_keys[p+2], sh_keys[p+3]);
+      sh_slots.free(sh);
+    }
+  }
+
+  private static boolean contains(int[] arr, int n, int v)
+  {
+    for(int i=0; i<n; i++) if (arr[i] == v) return true;
+    return false;
+  }
+
+  private static ByteString getKeyBytes(long[] keys, int slot)
+  {
+    byte[] b = new byte[Hash32Table.KEY_SIZE];
+    for(int i=0; i<4; i++) Hash32Table.writeLong(keys[slot*4+i], b, i*8);
+    return ByteString.copyFrom(b);
+  }
+
+  private void ensureTxCapacity(int tx)
+  {
+    if (tx < tx_sh.length) return;
+    int cap = tx_sh.length * 2;
+    tx_keys = Arrays.copyOf(tx_keys, cap*4);
+    tx_sh = Arrays.copyOf(tx_sh, cap);
+    tx_mark = Arrays.copyOf(tx_mark, cap);
+    tx_fee = Arrays.copyOf(tx_fee, cap);
+    tx_vsize = Arrays.copyOf(tx_vsize, cap);
+  }
+  private void ensureShCapacity(int sh)
+  {
+    if (sh < sh_head.length) return;
+    int cap = sh_head.length * 2;
+    sh_keys = Arrays.copyOf(sh_keys, cap*4);
+    sh_head = Arrays.copyOf(sh_head, cap);
+    sh_count = Arrays.copyOf(sh_count, cap);
+  }
+  private void ensureEdgeCapacity(int e)
+  {
+    if (e < edge_tx.length) return;
+    int cap = edge_tx.length * 2;
+    edge_tx = Arrays.copyOf(edge_tx, cap);
+    edge_next = Arrays.copyOf(edge_next, cap);
+  }
+
+  /**
+   * Hands out int slots, reusing freed ones first
+   */
+  private static class SlotPool
+  {
+    private int[] free = new int[64];
+    private int free_count;
+    private int high;
+
+    public int alloc()
+    {
+      if (free_count > 0) return free[--free_count];
+      return high++;
+    }
+    public void free(int slot)
+    {
+      if (free_count == free.length) free = Arrays.copyOf(free, free.length*2);
+      free[free_count++] = slot;
+    }
+    public int high()
+    {
+      return high;
+    }
+  }
+
+}
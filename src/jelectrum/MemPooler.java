@@ -2,14 +2,16 @@ package jelectrum;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
-import org.bitcoinj.core.TransactionOutPoint;
-import java.util.Set;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.HashMap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.HashMultimap;
+import java.util.List;
+import java.util.Map;
 import com.google.protobuf.ByteString;
+import org.json.JSONObject;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * The dolphin of this class is to fetch and maintain a view of the current mempool.
@@ -17,13 +19,35 @@ import com.google.protobuf.ByteString;
  * This is done by polling (or being triggered to poll) and using bitcoin rpc to get
  * a list of the current mempool transactions.  Then any unknown transactions will be loaded.
  *
- * mempool transactions are kept in memory and not saved to the DB
+ * When bitcoind zmq notifications are configured, each rawtx triggers a pass
+ * and the poll is only a slow safety net.
+ *
+ * mempool transactions are kept in memory and not saved to the DB, indexed
+ * in a compact MemPoolStore
  */
 public class MemPooler extends Thread
 {
+  public static final long POLL_DELAY=15000L;
+  public static final long POLL_DELAY_WITH_PUSH=60000L;
+
+  /**
+   * A flood of rawtx notifications shouldn't turn into back to back passes,
+   * triggers inside this window get folded into the next pass
+   */
+  public static final long MIN_PASS_DELAY=1000L;
+
+  public static final long SNAPSHOT_INTERVAL=300000L;
+
   private Jelectrum jelly;
 
-  private MemPoolInfo latest_info;
+  private MemPoolStore store = new MemPoolStore();
+  private volatile boolean loaded_once;
+
+  private long poll_delay;
+  private boolean triggered;
+
+  private File snapshot_file;
+  private long last_snapshot;
 
 
   public MemPooler(Jelectrum jelly)
@@ -32,15 +56,37 @@ public class MemPooler extends Thread
     setName("MemPooler");
     setDaemon(true);
 
+    poll_delay = POLL_DELAY;
+    if (jelly.getConfig().isSet("bitcoind_zmq_url"))
+    {
+      poll_delay = POLL_DELAY_WITH_PUSH;
+    }
+
+    if (jelly.getConfig().isSet("mempool_snapshot_path"))
+    {
+      snapshot_file = new File(jelly.getConfig().get("mempool_snapshot_path"));
+    }
+
   }
 
   public void run()
   {
+    if (snapshot_file != null)
+    {
+      loadSnapshot();
+      last_snapshot = System.currentTimeMillis();
+    }
+
     while(true)
     {
       try
       {
          runInner();
+         if ((snapshot_file != null) && (last_snapshot + SNAPSHOT_INTERVAL < System.currentTimeMillis()))
+         {
+           saveSnapshot();
+           last_snapshot = System.currentTimeMillis();
+         }
       }
       catch(Throwable t)
       {
@@ -49,7 +95,12 @@ public class MemPooler extends Thread
       }
       try
       {
-        Thread.sleep(15000L);
+        Thread.sleep(MIN_PASS_DELAY);
+        synchronized(this)
+        {
+          if (!triggered) this.wait(poll_delay - MIN_PASS_DELAY);
+          triggered=false;
+        }
       }
       catch(Throwable t)
       {
@@ -59,119 +110,162 @@ public class MemPooler extends Thread
     }
   }
 
+  /**
+   * Run a pass as soon as possible rather than waiting for the next poll
+   */
   public void triggerUpdate()
-    throws Exception
   {
-    //TODO - implement
+    synchronized(this)
+    {
+      triggered=true;
+      this.notifyAll();
+    }
   }
+  /**
+   * Only the difference from the last pass is processed.  New transactions
+   * are loaded with batched rpc calls and the index is updated in place,
+   * so a pass costs in proportion to the churn rather than the mempool size.
+   */
   private void runInner()
     throws Exception
   {
-    HashSet<Sha256Hash> new_tx_set = new HashSet<>();
+    List<Sha256Hash> mempool_list = jelly.getBitcoinRPC().getMempoolList();
 
-    new_tx_set.addAll(jelly.getBitcoinRPC().getMempoolList());
+    HashSet<Sha256Hash> added = new HashSet<>();
+    store.startMarkPass();
+    for(Sha256Hash tx_hash : mempool_list)
+    {
+      if (!store.mark(tx_hash)) added.add(tx_hash);
+    }
+    List<Sha256Hash> removed = store.getUnmarked();
 
-    MemPoolInfo prev_info = latest_info;
+    TXUtil tx_util = jelly.getDB().getTXUtil();
 
-    MemPoolInfo new_info = new MemPoolInfo();
+    Map<Sha256Hash, SerializedTransaction> loaded = jelly.getBitcoinRPC().getTransactions(added);
+    HashMap<Sha256Hash, Transaction> loaded_tx_map = new HashMap<>(loaded.size()*2+1, 0.5f);
+    for(Map.Entry<Sha256Hash, SerializedTransaction> me : loaded.entrySet())
+    {
+      Transaction tx = me.getValue().getTx(jelly.getNetworkParameters());
+      tx_util.putTxCacheIfOpen(tx);
+      loaded_tx_map.put(me.getKey(), tx);
+    }
 
-    new_info.tx_set.addAll(new_tx_set);
-    int existing_tx=0;
-    int new_tx=0;
     int fail_tx=0;
-
-    HashSet<ByteString> new_keys = new HashSet<>();
-
-    for(Sha256Hash tx_hash : new_tx_set)
+    for(Sha256Hash tx_hash : added)
     {
-      TransactionSummary tx_summary = null;
-      if (prev_info !=null)
-      {
-        tx_summary = prev_info.tx_summary_map.get(tx_hash);
-        existing_tx++;
-      }
-      if (tx_summary == null)
+      if (!loaded_tx_map.containsKey(tx_hash))
       {
-        Transaction tx = jelly.getDB().getTXUtil().getTransaction(tx_hash);
-        if (tx != null)
-        {
-          tx_summary = new TransactionSummary(tx, jelly.getDB().getTXUtil(), false, null);
-          new_tx++;
-  
-          new_keys.addAll(tx_summary.getScriptHashes());
-        }
-        else
-        {
-          jelly.getEventLog().log(String.format("MemPooler: Failed to load TX - %s", tx_hash.toString()));
-        }
+        jelly.getEventLog().log(String.format("MemPooler: Failed to load TX - %s", tx_hash.toString()));
+        fail_tx++;
       }
+    }
+
+    Map<Sha256Hash, JSONObject> entries = jelly.getBitcoinRPC().getMempoolEntries(loaded_tx_map.keySet());
 
-      if (tx_summary == null)
+    HashSet<ByteString> changed_keys = new HashSet<>();
+    for(Sha256Hash tx_hash : removed)
+    {
+      store.removeTx(tx_hash, changed_keys);
+    }
+    for(Transaction tx : loaded_tx_map.values())
+    {
+      // Parents that arrived in the same batch get resolved from the batch
+      // rather than another rpc
+      Collection<ByteString> keys = tx_util.getAllScriptHashes(tx, false, loaded_tx_map);
+      long fee = 0L;
+      int vsize = 0;
+      JSONObject entry = entries.get(tx.getHash());
+      if (entry != null)
       {
-        fail_tx++;
+        fee = getEntryFee(entry);
+        vsize = entry.optInt("vsize", entry.optInt("size", 0));
       }
-      else
-      {
-        new_info.tx_summary_map.put(tx_hash, tx_summary);
+      store.addTx(tx.getHash(), keys, fee, vsize);
+      changed_keys.addAll(keys);
+    }
+    loaded_once = true;
 
-        for(ByteString hash : tx_summary.getScriptHashes())
-        {
-          new_info.scripthash_to_tx_map.put(hash, tx_hash);
-        }
-      }
+    jelly.getEventLog().log(String.format("Mempool size: %d (added %d, removed %d, fail %d, scripthashes %d)", 
+      store.size(), loaded_tx_map.size(), removed.size(), fail_tx, store.getScriptHashCount()));
 
+    if (changed_keys.size() > 0)
+    {
+      jelly.getElectrumNotifier().notifyNewTransaction(changed_keys, -1);
     }
+  }
 
-    jelly.getEventLog().log(String.format("Mempool size: %d (existing %d, new %d, fail %d)", new_tx_set.size(), existing_tx, new_tx, fail_tx));
+  /**
+   * Load the last saved mempool so clients see unconfirmed history right
+   * away.  The first pass then reconciles it against bitcoind with a single
+   * getrawmempool diff like any other pass.
+   */
+  private void loadSnapshot()
+  {
+    if (!snapshot_file.exists()) return;
+    try
+    {
+      long t1 = System.currentTimeMillis();
+      byte[] data = Files.readAllBytes(snapshot_file.toPath());
+      int count = store.loadSnapshot(data);
+      loaded_once = true;
+      jelly.getEventLog().log(String.format("MemPooler: loaded %d transactions from snapshot in %d ms", count, System.currentTimeMillis() - t1));
+    }
+    catch(Throwable t)
+    {
+      jelly.getEventLog().alarm("MemPooler: unable to load snapshot - " + t);
+    }
+  }
 
-    latest_info = new_info;
+  private void saveSnapshot()
+  {
+    try
+    {
+      byte[] data = store.getSnapshot();
+      File tmp = new File(snapshot_file.getPath() + ".tmp");
+      Files.write(tmp.toPath(), data);
+      Files.move(tmp.toPath(), snapshot_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(Throwable t)
+    {
+      jelly.getEventLog().alarm("MemPooler: unable to save snapshot - " + t);
+    }
+  }
 
-    jelly.getElectrumNotifier().notifyNewTransaction(new_keys, -1);
+  /**
+   * Base fee in satoshis.  Newer bitcoind has it under fees.base,
+   * older ones as a top level fee.
+   */
+  private static long getEntryFee(JSONObject entry)
+  {
+    double btc = 0.0;
+    JSONObject fees = entry.optJSONObject("fees");
+    if (fees != null)
+    {
+      btc = fees.optDouble("base", 0.0);
+    }
+    else
+    {
+      btc = entry.optDouble("fee", 0.0);
+    }
+    return Math.round(btc * 1e8);
   }
 
   public HashSet<Sha256Hash> getTxForScriptHash(ByteString key)
   {
     HashSet<Sha256Hash> set = new HashSet<>();
-    MemPoolInfo info = latest_info;
-    if (info == null) return set;
-
-    Collection<Sha256Hash> mem_set = info.scripthash_to_tx_map.get(key);
-    if (mem_set != null)
-    {
-      set.addAll(mem_set);
-    } 
+    store.getTxForScriptHash(key, set);
     return set;
   }
   public boolean areSomeInputsPending(Transaction tx)
   {
-    MemPoolInfo info = latest_info;
-    if (info == null) return false; //Hard to say
+    if (!loaded_once) return false; //Hard to say
 
-    for(TransactionInput tx_in : tx.getInputs())
-    {
-      if (!tx_in.isCoinBase())
-      {
-        TransactionOutPoint tx_out = tx_in.getOutpoint();
-        Sha256Hash parent_hash = tx_out.getHash();
-        if (info.tx_set.contains(parent_hash)) return true;
-      }
-    }
-    return false;
+    return store.areSomeInputsPending(tx);
   }
 
-  public class MemPoolInfo
+  public MemPoolStore getStore()
   {
-    HashSet<Sha256Hash> tx_set;
-    HashMap<Sha256Hash, TransactionSummary> tx_summary_map;
-    Multimap<ByteString, Sha256Hash> scripthash_to_tx_map;
-
-    public MemPoolInfo()
-    {
-      tx_set = new HashSet<>(256, 0.5f);
-      tx_summary_map = new HashMap<>(256, 0.5f);
-      scripthash_to_tx_map = HashMultimap.<ByteString,Sha256Hash>create();
-    }
-
+    return store;
   }
 
 }
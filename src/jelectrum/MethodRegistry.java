@@ -0,0 +1,204 @@
+package jelectrum;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stratum methods by name, each with the range of protocol versions it is
+ * offered for, so a request is routed with one hash lookup.  Also keeps
+ * per method counts, errors, bytes in and out and a latency histogram.
+ *
+ * Everything is registered up front, after that it is only read.
+ */
+public class MethodRegistry
+{
+  public interface Handler
+  {
+    public void handle(StratumConnection conn, StratumConnection.Request req) throws Exception;
+  }
+
+  /** Latency buckets are powers of two microseconds, the last one is everything longer */
+  public static final int LATENCY_BUCKETS=24;
+
+  private final HashMap<String, List<Registration>> methods = new HashMap<>();
+  private final HashMap<String, MethodStats> stats = new HashMap<>();
+  private final MethodStats unknown_stats = new MethodStats("unknown");
+
+  /**
+   * Offered for protocol versions from min_proto (inclusive) up to max_proto
+   * (exclusive), either may be null for no bound.  See compareProto().
+   */
+  public void register(String method, String min_proto, String max_proto, Handler handler)
+  {
+    List<Registration> lst = methods.get(method);
+    if (lst == null)
+    {
+      lst = new ArrayList<>(1);
+      methods.put(method, lst);
+      stats.put(method, new MethodStats(method));
+    }
+    lst.add(new Registration(min_proto, max_proto, handler));
+  }
+
+  public void register(String method, Handler handler)
+  {
+    register(method, null, null, handler);
+  }
+
+  /**
+   * Returns null if the method isn't offered for this protocol version
+   */
+  public Handler lookup(String method, String proto)
+  {
+    List<Registration> lst = methods.get(method);
+    if (lst == null) return null;
+    for(Registration r : lst)
+    {
+      if ((r.min_proto != null) && (compareProto(proto, r.min_proto) < 0)) continue;
+      if ((r.max_proto != null) && (compareProto(proto, r.max_proto) >= 0)) continue;
+      return r.handler;
+    }
+    return null;
+  }
+
+  /**
+   * Compares protocol versions part by part as numbers, so 1.10 comes after
+   * 1.4 and 1.4 equals 1.4.0.  Whatever isn't a number counts as 0, since
+   * these come from clients.
+   */
+  public static int compareProto(String a, String b)
+  {
+    String[] pa = a.split("\\.");
+    String[] pb = b.split("\\.");
+    for(int i=0; i<Math.max(pa.length, pb.length); i++)
+    {
+      int x = (i < pa.length) ? parsePart(pa[i]) : 0;
+      int y = (i < pb.length) ? parsePart(pb[i]) : 0;
+      if (x != y) return (x < y) ? -1 : 1;
+    }
+    return 0;
+  }
+
+  private static int parsePart(String s)
+  {
+    int v = 0;
+    for(int i=0; i<s.length() && v < 100000; i++)
+    {
+      char c = s.charAt(i);
+      if ((c < '0') || (c > '9')) break;
+      v = v * 10 + (c - '0');
+    }
+    return v;
+  }
+
+  public MethodStats getStats(String method)
+  {
+    MethodStats s = stats.get(method);
+    if (s == null) return unknown_stats;
+    return s;
+  }
+
+  /**
+   * One line per method that has seen any requests
+   */
+  public List<String> getSummary()
+  {
+    ArrayList<String> lines = new ArrayList<>();
+    TreeMap<String, MethodStats> sorted = new TreeMap<>(stats);
+    sorted.put("unknown", unknown_stats);
+    for(MethodStats s : sorted.values())
+    {
+      if (s.getCount() == 0) continue;
+      lines.add(s.toString());
+    }
+    return lines;
+  }
+
+  private static class Registration
+  {
+    final String min_proto;
+    final String max_proto;
+    final Handler handler;
+
+    Registration(String min_proto, String max_proto, Handler handler)
+    {
+      this.min_proto = min_proto;
+      this.max_proto = max_proto;
+      this.handler = handler;
+    }
+  }
+
+  public static class MethodStats
+  {
+    private final String method;
+    private final AtomicLong count = new AtomicLong(0L);
+    private final AtomicLong errors = new AtomicLong(0L);
+    private final AtomicLong bytes_in = new AtomicLong(0L);
+    private final AtomicLong bytes_out = new AtomicLong(0L);
+    private final AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS);
+
+    public MethodStats(String method)
+    {
+      this.method = method;
+    }
+
+    public void record(long latency_ns, int in_size, boolean error)
+    {
+      count.incrementAndGet();
+      if (error) errors.incrementAndGet();
+      bytes_in.addAndGet(in_size);
+      latency.incrementAndGet(getLatencyBucket(latency_ns));
+    }
+
+    public void recordOut(int out_size)
+    {
+      bytes_out.addAndGet(out_size);
+    }
+
+    public long getCount() { return count.get(); }
+    public long getErrorCount() { return errors.get(); }
+    public long getBytesIn() { return bytes_in.get(); }
+    public long getBytesOut() { return bytes_out.get(); }
+    public long getLatencyCount(int bucket) { return latency.get(bucket); }
+
+    /**
+     * Upper bound in microseconds of the bucket that has the given fraction
+     * of requests at or below it
+     */
+    public long getLatencyPercentile(double p)
+    {
+      long total = 0;
+      for(int i=0; i<LATENCY_BUCKETS; i++) total += latency.get(i);
+      if (total == 0) return 0L;
+      long target = (long)Math.ceil(total * p);
+      long r = 0;
+      for(int i=0; i<LATENCY_BUCKETS; i++)
+      {
+        r += latency.get(i);
+        if (r >= target) return 1L << i;
+      }
+      return 1L << (LATENCY_BUCKETS - 1);
+    }
+
+    public String toString()
+    {
+      return String.format("Method %s: count %d errors %d in %d out %d p50 %dus p99 %dus",
+        method, getCount(), getErrorCount(), getBytesIn(), getBytesOut(),
+        getLatencyPercentile(0.5), getLatencyPercentile(0.99));
+    }
+
+    public static int getLatencyBucket(long latency_ns)
+    {
+      long us = latency_ns / 1000L;
+      int b = 0;
+      while((b < LATENCY_BUCKETS - 1) && ((1L << b) < us)) b++;
+      return b;
+    }
+  }
+
+}
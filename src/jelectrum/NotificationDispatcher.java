@@ -0,0 +1,175 @@
+package jelectrum;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Takes the work of telling subscribers about changed scripthashes and new
+ * blocks off the import and mempool threads.
+ *
+ * Changed scripthashes are queued and a pool of worker threads computes
+ * the new status and fans it out.  A scripthash that is already waiting
+ * in the queue isn't queued again, so a busy address changed by a block
+ * and a few mempool passes in quick succession is only computed once.
+ * A scripthash is taken out of the pending set before its status is
+ * computed, so a change that arrives during the computation queues it again.
+ * Only one worker works on a scripthash at a time; one that comes up
+ * while another worker is still sending it goes back in the queue, so an
+ * older status can never reach a client after a newer one.
+ *
+ * A queued scripthash isn't worked on until the coalescing window has
+ * passed since its first change, so a burst of mempool transactions followed
+ * by a block touching the same address turns into one status computation
+ * and one push.  Block notifications aren't delayed.
+ */
+public class NotificationDispatcher
+{
+  private ElectrumNotifier notifier;
+  private EventLog event_log;
+
+  private DelayQueue<Item> queue = new DelayQueue<>();
+  private Set<ByteString> pending = Collections.newSetFromMap(new ConcurrentHashMap<ByteString, Boolean>(1024, 0.75f, 16));
+  private Set<ByteString> in_progress = Collections.newSetFromMap(new ConcurrentHashMap<ByteString, Boolean>(64, 0.75f, 16));
+
+  private AtomicLong enqueued = new AtomicLong(0L);
+  private AtomicLong coalesced = new AtomicLong(0L);
+  private AtomicLong processed = new AtomicLong(0L);
+
+  private final long window_ns;
+
+  // Least wait before looking again at a scripthash another worker has
+  private static final long RETRY_NS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+  public NotificationDispatcher(ElectrumNotifier notifier, EventLog event_log, long window_ms)
+  {
+    this.notifier = notifier;
+    this.event_log = event_log;
+    this.window_ns = TimeUnit.MILLISECONDS.toNanos(window_ms);
+  }
+
+  public void start(int threads)
+  {
+    for(int i=0; i<threads; i++)
+    {
+      new WorkerThread(i).start();
+    }
+  }
+
+  public void enqueueScriptHash(ByteString scripthash)
+  {
+    enqueued.incrementAndGet();
+    if (pending.add(scripthash))
+    {
+      queue.offer(new Item(scripthash, System.nanoTime() + window_ns));
+    }
+    else
+    {
+      coalesced.incrementAndGet();
+    }
+  }
+
+  public void enqueueBlock()
+  {
+    queue.offer(new Item(null, System.nanoTime()));
+  }
+
+  public int getQueueSize() { return queue.size(); }
+  public long getEnqueuedCount() { return enqueued.get(); }
+  /** Change events that were merged into one already queued */
+  public long getCoalescedCount() { return coalesced.get(); }
+  public long getProcessedCount() { return processed.get(); }
+
+  public String getSummary()
+  {
+    return "Notify queue: " + getQueueSize() + " enqueued: " + getEnqueuedCount()
+      + " coalesced: " + getCoalescedCount() + " processed: " + getProcessedCount();
+  }
+
+  /**
+   * A scripthash to notify, or a new block if scripthash is null
+   */
+  private static class Item implements Delayed
+  {
+    final ByteString scripthash;
+    final long due;
+
+    Item(ByteString scripthash, long due)
+    {
+      this.scripthash = scripthash;
+      this.due = due;
+    }
+
+    public long getDelay(TimeUnit unit)
+    {
+      return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public int compareTo(Delayed o)
+    {
+      long d = due - ((Item)o).due;
+      if (d < 0) return -1;
+      if (d > 0) return 1;
+      return 0;
+    }
+  }
+
+  public class WorkerThread extends Thread
+  {
+    public WorkerThread(int n)
+    {
+      setName("NotificationDispatcher/" + n);
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      while(true)
+      {
+        try
+        {
+          Item item = queue.take();
+          if (item.scripthash == null)
+          {
+            notifier.sendBlockNotifications();
+          }
+          else
+          {
+            ByteString scripthash = item.scripthash;
+            pending.remove(scripthash);
+            if (!in_progress.add(scripthash))
+            {
+              // Another worker is still sending it, try again after it is done
+              if (pending.add(scripthash))
+              {
+                queue.offer(new Item(scripthash, System.nanoTime() + Math.max(window_ns, RETRY_NS)));
+              }
+              continue;
+            }
+            try
+            {
+              notifier.sendScriptHashNotifications(scripthash);
+            }
+            finally
+            {
+              in_progress.remove(scripthash);
+            }
+          }
+          processed.incrementAndGet();
+        }
+        catch(Throwable t)
+        {
+          event_log.alarm("NotificationDispatcher error: " + t);
+          event_log.logTrace(t);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,197 @@
+package jelectrum;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages waiting to be written to one client, bounded by bytes.
+ *
+ * When the bytes queued go over the limit, notifications that have been
+ * superseded by a later one with the same key (an older status for the
+ * same scripthash, an older header) are dropped.  If that isn't enough
+ * and the queue stays over the limit for the grace period, or grows by
+ * another four times the limit during it, offer() says the client should
+ * be dropped.  So one big reply starts the grace period rather than
+ * dropping the client outright.
+ *
+ * The latest message for each supersede key and the ones it replaced are
+ * tracked as they come in, so collapsing never walks the queue.
+ *
+ * Uses a ReentrantLock rather than synchronized so a virtual thread
+ * waiting in poll() doesn't pin its carrier thread.
+ */
+public class OutboundQueue
+{
+  private final long max_bytes;
+  private final long grace_ms;
+
+  // Doubly linked so superseded messages come out of the middle in O(1)
+  private Node head;
+  private Node tail;
+  private int count;
+  private final HashMap<Object, Node> latest = new HashMap<>();
+  private final LinkedHashSet<Node> superseded = new LinkedHashSet<>();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition not_empty = lock.newCondition();
+  private long queued_bytes;
+  private long over_since;
+  private long over_base;
+  private long collapsed;
+
+  public OutboundQueue(long max_bytes, long grace_ms)
+  {
+    this.max_bytes = max_bytes;
+    this.grace_ms = grace_ms;
+  }
+
+  /**
+   * Returns false if the client is too far behind and should be dropped
+   */
+  public boolean offer(EncodedMessage msg)
+  {
+    lock.lock();
+    try
+    {
+      Node n = new Node(msg);
+      link(n);
+      Object key = msg.getSupersedeKey();
+      if (key != null)
+      {
+        Node old = latest.put(key, n);
+        if (old != null) superseded.add(old);
+      }
+      queued_bytes += msg.size();
+      not_empty.signalAll();
+
+      if (queued_bytes <= max_bytes)
+      {
+        over_since = 0L;
+        return true;
+      }
+
+      collapse();
+      if (queued_bytes <= max_bytes)
+      {
+        over_since = 0L;
+        return true;
+      }
+      long now = System.currentTimeMillis();
+      if (over_since == 0L)
+      {
+        over_since = now;
+        over_base = queued_bytes;
+      }
+      if (queued_bytes - over_base > max_bytes * 4) return false;
+      return (now - over_since <= grace_ms);
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits up to the timeout, returns null if nothing showed up
+   */
+  public EncodedMessage poll(long timeout_ms)
+    throws InterruptedException
+  {
+    lock.lock();
+    try
+    {
+      long wait = TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+      while(head == null)
+      {
+        if (wait <= 0L) return null;
+        wait = not_empty.awaitNanos(wait);
+      }
+      Node n = head;
+      unlink(n);
+      if (!superseded.remove(n))
+      {
+        Object key = n.msg.getSupersedeKey();
+        if (key != null) latest.remove(key);
+      }
+      EncodedMessage msg = n.msg;
+      queued_bytes -= msg.size();
+      if (queued_bytes <= max_bytes) over_since = 0L;
+      return msg;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops every message with a supersede key that has a later one with the same key
+   */
+  private void collapse()
+  {
+    for(Node n : superseded)
+    {
+      unlink(n);
+      queued_bytes -= n.msg.size();
+      collapsed++;
+    }
+    superseded.clear();
+  }
+
+  private void link(Node n)
+  {
+    n.prev = tail;
+    if (tail == null) head = n;
+    else tail.next = n;
+    tail = n;
+    count++;
+  }
+
+  private void unlink(Node n)
+  {
+    if (n.prev == null) head = n.next;
+    else n.prev.next = n.next;
+    if (n.next == null) tail = n.prev;
+    else n.next.prev = n.prev;
+    n.prev = null;
+    n.next = null;
+    count--;
+  }
+
+  public int size()
+  {
+    lock.lock();
+    try { return count; }
+    finally { lock.unlock(); }
+  }
+
+  public long getQueuedBytes()
+  {
+    lock.lock();
+    try { return queued_bytes; }
+    finally { lock.unlock(); }
+  }
+
+  public long getCollapsedCount()
+  {
+    lock.lock();
+    try { return collapsed; }
+    finally { lock.unlock(); }
+  }
+
+  private static class Node
+  {
+    final EncodedMessage msg;
+    Node prev;
+    Node next;
+
+    Node(EncodedMessage msg)
+    {
+      this.msg = msg;
+    }
+  }
+
+}
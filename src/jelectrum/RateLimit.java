@@ -1,57 +1,83 @@
 package jelectrum;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket kept as a single virtual clock: the time at which everything
+ * reserved so far would have been sent at the allowed rate.  The clock is
+ * never allowed to fall more than buffer_seconds behind now, which is the burst.
+ *
+ * Reserving is a compare and set on that clock, no locks.  Callers get
+ * back how long to hold off, so a blocking writer can sleep and an event
+ * loop can schedule the write for later.
+ */
 public class RateLimit
 {
-  
-  private double max_bytes_per_ns;
-  private double last_allocated;
-  private double buffer_seconds;
+
+  private final double ns_per_byte;
+  private final long buffer_ns;
+  private final AtomicLong last_allocated;
 
   public RateLimit(double maxBytesPerSecond, double buffer_seconds)
   {
-    max_bytes_per_ns = maxBytesPerSecond / 1e9;
-    this.buffer_seconds = buffer_seconds;
+    ns_per_byte = 1e9 / maxBytesPerSecond;
+    buffer_ns = (long)(buffer_seconds * 1e9);
 
-    resetLast();
-  }
-
-  private void resetLast()
-  {
-    last_allocated = Math.max(
-      System.nanoTime() - (buffer_seconds * 1e9),
-      last_allocated);
+    last_allocated = new AtomicLong(System.nanoTime() - buffer_ns);
   }
 
   /**
-   * Returns true if a rate limit was applied
+   * Takes the bytes from the bucket and returns the nanoseconds the caller
+   * should wait before sending them, 0 if they can go now.  Never blocks.
    */
-  public synchronized boolean waitForRate(double bytes)
+  public long reserve(double bytes)
   {
-    resetLast();
-
-
-    double end_time = last_allocated + (bytes / max_bytes_per_ns);
-    double tm = System.nanoTime();
-
-    last_allocated = end_time;
-    if (end_time > tm)
+    long cost = (long)(bytes * ns_per_byte);
+    while(true)
     {
-      long wait_tm = (long)((end_time - tm) / 1e6);
-      try
-      {
-        Thread.sleep(wait_tm);
-      }
-      catch(InterruptedException e)
+      long now = System.nanoTime();
+      long last = last_allocated.get();
+      long start = Math.max(last, now - buffer_ns);
+      long end = start + cost;
+      if (last_allocated.compareAndSet(last, end))
       {
-        throw new RuntimeException(e);
+        return Math.max(0L, end - now);
       }
-      return true;
     }
-    return false;
+  }
 
+  /**
+   * True if the bucket is full, so dropping it and making a new one later
+   * makes no difference
+   */
+  public boolean isIdle()
+  {
+    return last_allocated.get() <= System.nanoTime() - buffer_ns;
   }
 
+  /**
+   * Returns true if a rate limit was applied
+   */
+  public boolean waitForRate(double bytes)
+  {
+    return sleepNanos(reserve(bytes));
+  }
 
- 
+  /**
+   * Returns true if it slept
+   */
+  public static boolean sleepNanos(long wait_ns)
+  {
+    if (wait_ns <= 0L) return false;
+    try
+    {
+      Thread.sleep(wait_ns / 1000000L, (int)(wait_ns % 1000000L));
+    }
+    catch(InterruptedException e)
+    {
+      throw new RuntimeException(e);
+    }
+    return true;
+  }
 
 }
@@ -0,0 +1,376 @@
+package jelectrum;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Shared cache of encoded results for read-only Stratum methods, keyed by
+ * method and params.  A hit only has to wrap the cached result bytes with
+ * the request id.
+ *
+ * Each method has a scope that says what makes its results stale:
+ *  SCOPE_FIXED - never (transactions by hash)
+ *  SCOPE_CHAIN - a reorg (headers by height)
+ *  SCOPE_SCRIPTHASH - a change to that scripthash or a reorg
+ *  SCOPE_TTL - just age (peer lists)
+ *
+ * Bounded by total bytes of cached results, least recently used goes first.
+ */
+public class ResponseCache
+{
+  public static final int SCOPE_FIXED=0;
+  public static final int SCOPE_CHAIN=1;
+  public static final int SCOPE_SCRIPTHASH=2;
+  public static final int SCOPE_TTL=3;
+
+  public static final long TTL_MS=60000L;
+  private static final int MAX_TRACKED_SCRIPTHASHES=262144;
+
+  public static final Map<String, Integer> DEFAULT_METHODS;
+  static
+  {
+    DEFAULT_METHODS = new TreeMap<>();
+    DEFAULT_METHODS.put("blockchain.transaction.get", SCOPE_FIXED);
+    DEFAULT_METHODS.put("blockchain.block.get_header", SCOPE_CHAIN);
+    DEFAULT_METHODS.put("blockchain.transaction.id_from_pos", SCOPE_CHAIN);
+    DEFAULT_METHODS.put("blockchain.address.get_history", SCOPE_SCRIPTHASH);
+    DEFAULT_METHODS.put("blockchain.scripthash.get_history", SCOPE_SCRIPTHASH);
+    DEFAULT_METHODS.put("blockchain.address.get_mempool", SCOPE_SCRIPTHASH);
+    DEFAULT_METHODS.put("blockchain.scripthash.get_mempool", SCOPE_SCRIPTHASH);
+    DEFAULT_METHODS.put("blockchain.address.get_balance", SCOPE_SCRIPTHASH);
+    DEFAULT_METHODS.put("blockchain.scripthash.get_balance", SCOPE_SCRIPTHASH);
+    DEFAULT_METHODS.put("blockchain.address.listunspent", SCOPE_SCRIPTHASH);
+    DEFAULT_METHODS.put("blockchain.scripthash.listunspent", SCOPE_SCRIPTHASH);
+    DEFAULT_METHODS.put("server.peers.subscribe", SCOPE_TTL);
+  }
+
+  private final long max_bytes;
+  private final Map<String, Integer> methods;
+
+  private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(1024, 0.75f, true);
+  private final HashMap<ByteString, Set<String>> scripthash_index = new HashMap<>();
+  private long total_bytes;
+
+  // A result is only stored if nothing made it stale while it was being
+  // computed.  Each scripthash invalidation takes the next seq, and the
+  // last one for each recently touched scripthash is kept.  Anything older
+  // than what is kept is assumed invalidated at invalidated_floor.
+  private long seq;
+  private long invalidated_floor;
+  private final LinkedHashMap<ByteString, Long> invalidated_at = new LinkedHashMap<ByteString, Long>(1024, 0.75f, true)
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ByteString, Long> eldest)
+    {
+      if (size() <= MAX_TRACKED_SCRIPTHASHES) return false;
+      invalidated_floor = Math.max(invalidated_floor, eldest.getValue());
+      return true;
+    }
+  };
+  private long chain_gen;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+  private final AtomicLong evictions = new AtomicLong(0L);
+  private final AtomicLong invalidations = new AtomicLong(0L);
+  private final ConcurrentHashMap<String, AtomicLong[]> method_stats = new ConcurrentHashMap<>();
+
+  /**
+   * response_cache_bytes - limit on cached bytes, 0 to disable.  Default 64mb.
+   * response_cache_methods - comma list of methods to cache, from DEFAULT_METHODS.
+   */
+  public static ResponseCache create(Config config)
+  {
+    long max_bytes = 64L * 1048576L;
+    if (config.isSet("response_cache_bytes"))
+    {
+      max_bytes = Long.parseLong(config.get("response_cache_bytes"));
+    }
+    Collection<String> methods = DEFAULT_METHODS.keySet();
+    if (config.isSet("response_cache_methods"))
+    {
+      methods = config.getList("response_cache_methods");
+    }
+    return new ResponseCache(max_bytes, methods);
+  }
+
+  public ResponseCache(long max_bytes, Collection<String> enabled_methods)
+  {
+    this.max_bytes = max_bytes;
+    methods = new HashMap<>();
+    for(String m : enabled_methods)
+    {
+      if (!DEFAULT_METHODS.containsKey(m)) throw new IllegalArgumentException("Not a cacheable method: " + m);
+      methods.put(m, DEFAULT_METHODS.get(m));
+      method_stats.put(m, new AtomicLong[]{new AtomicLong(0L), new AtomicLong(0L)});
+    }
+  }
+
+  /**
+   * Returns null if this method isn't cached.  The scripthash is required
+   * for SCOPE_SCRIPTHASH methods.
+   */
+  public Key getKey(String method, JSONArray params, ByteString scripthash)
+  {
+    if (max_bytes <= 0) return null;
+    Integer scope = methods.get(method);
+    if (scope == null) return null;
+    if ((scope == SCOPE_SCRIPTHASH) && (scripthash == null)) return null;
+
+    synchronized(this)
+    {
+      return new Key(method, method + params.toString(), scope, scripthash, seq, chain_gen);
+    }
+  }
+
+  /**
+   * Returns the complete reply for this request id or null on a miss
+   */
+  public EncodedMessage get(Key key, Object request_id)
+  {
+    byte[] result = null;
+    synchronized(this)
+    {
+      Entry e = cache.get(key.str);
+      if (e != null)
+      {
+        if ((e.expires > 0) && (e.expires < System.currentTimeMillis()))
+        {
+          removeEntry(key.str);
+        }
+        else
+        {
+          result = e.result;
+        }
+      }
+    }
+    AtomicLong[] stats = method_stats.get(key.method);
+    if (result == null)
+    {
+      misses.incrementAndGet();
+      stats[1].incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    stats[0].incrementAndGet();
+    return EncodedMessage.forResult(request_id, result);
+  }
+
+  /**
+   * Stores the result of the reply if it has one and encodes the reply to send.
+   * The result is only encoded once for both.
+   */
+  public EncodedMessage put(Key key, JSONObject reply)
+  {
+    if (!reply.has("result") || reply.has("error")) return new EncodedMessage(reply);
+
+    byte[] result;
+    try
+    {
+      result = JSONObject.valueToString(reply.get("result")).getBytes(StandardCharsets.UTF_8);
+    }
+    catch(org.json.JSONException e)
+    {
+      throw new RuntimeException(e);
+    }
+
+    return putResult(key, reply.opt("id"), result);
+  }
+
+  /**
+   * Stores an already encoded result and returns the reply to send
+   */
+  public EncodedMessage putResult(Key key, Object request_id, byte[] result)
+  {
+    synchronized(this)
+    {
+      boolean stale = false;
+      if ((key.scope == SCOPE_SCRIPTHASH) && (getInvalidatedAt(key.scripthash) > key.seq)) stale = true;
+      if ((key.scope == SCOPE_SCRIPTHASH || key.scope == SCOPE_CHAIN) && (key.chain_gen != chain_gen)) stale = true;
+
+      if ((!stale) && (result.length <= max_bytes / 16))
+      {
+        removeEntry(key.str);
+        long expires = 0L;
+        if (key.scope == SCOPE_TTL) expires = System.currentTimeMillis() + TTL_MS;
+
+        cache.put(key.str, new Entry(result, key.scope, key.scripthash, expires));
+        total_bytes += result.length;
+        if (key.scripthash != null)
+        {
+          Set<String> keys = scripthash_index.get(key.scripthash);
+          if (keys == null)
+          {
+            keys = new HashSet<>();
+            scripthash_index.put(key.scripthash, keys);
+          }
+          keys.add(key.str);
+        }
+        trim();
+      }
+    }
+
+    return EncodedMessage.forResult(request_id, result);
+  }
+
+  /**
+   * Something touched these scripthashes, mempool or block
+   */
+  public synchronized void invalidateScriptHashes(Collection<ByteString> scripthashes)
+  {
+    seq++;
+    for(ByteString s : scripthashes)
+    {
+      invalidated_at.put(s, seq);
+      Set<String> keys = scripthash_index.remove(s);
+      if (keys == null) continue;
+      for(String k : keys)
+      {
+        Entry e = cache.remove(k);
+        if (e != null)
+        {
+          total_bytes -= e.result.length;
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops everything that depends on which blocks are in the main chain
+   */
+  public synchronized void invalidateReorg()
+  {
+    chain_gen++;
+    Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+    while(it.hasNext())
+    {
+      Map.Entry<String, Entry> me = it.next();
+      int scope = me.getValue().scope;
+      if ((scope == SCOPE_CHAIN) || (scope == SCOPE_SCRIPTHASH))
+      {
+        total_bytes -= me.getValue().result.length;
+        it.remove();
+        invalidations.incrementAndGet();
+      }
+    }
+    scripthash_index.clear();
+  }
+
+  public synchronized long getTotalBytes() { return total_bytes; }
+  public synchronized int size() { return cache.size(); }
+  public long getHitCount() { return hits.get(); }
+  public long getMissCount() { return misses.get(); }
+
+  public String getSummary()
+  {
+    long h = hits.get();
+    long m = misses.get();
+    double rate = 0.0;
+    if (h + m > 0) rate = 100.0 * h / (h + m);
+
+    StringBuilder sb = new StringBuilder();
+    synchronized(this)
+    {
+      sb.append(String.format("Response cache: %d entries %d bytes hit rate %.1f%% (%d/%d) evicted %d invalidated %d",
+        cache.size(), total_bytes, rate, h, h + m, evictions.get(), invalidations.get()));
+    }
+    for(Map.Entry<String, AtomicLong[]> me : new TreeMap<String, AtomicLong[]>(method_stats).entrySet())
+    {
+      long mh = me.getValue()[0].get();
+      long mm = me.getValue()[1].get();
+      if (mh + mm == 0) continue;
+      sb.append(String.format(" %s %d/%d", me.getKey(), mh, mh + mm));
+    }
+    return sb.toString();
+  }
+
+  private long getInvalidatedAt(ByteString scripthash)
+  {
+    Long at = invalidated_at.get(scripthash);
+    if (at == null) return invalidated_floor;
+    return at;
+  }
+
+  private void trim()
+  {
+    Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+    while((total_bytes > max_bytes) && (it.hasNext()))
+    {
+      Map.Entry<String, Entry> me = it.next();
+      Entry e = me.getValue();
+      it.remove();
+      total_bytes -= e.result.length;
+      unindex(me.getKey(), e);
+      evictions.incrementAndGet();
+    }
+  }
+
+  private void removeEntry(String k)
+  {
+    Entry e = cache.remove(k);
+    if (e == null) return;
+    total_bytes -= e.result.length;
+    unindex(k, e);
+  }
+
+  private void unindex(String k, Entry e)
+  {
+    if (e.scripthash == null) return;
+    Set<String> keys = scripthash_index.get(e.scripthash);
+    if (keys == null) return;
+    keys.remove(k);
+    if (keys.isEmpty()) scripthash_index.remove(e.scripthash);
+  }
+
+  public static class Key
+  {
+    private final String method;
+    private final String str;
+    private final int scope;
+    private final ByteString scripthash;
+    private final long seq;
+    private final long chain_gen;
+
+    private Key(String method, String str, int scope, ByteString scripthash, long seq, long chain_gen)
+    {
+      this.method = method;
+      this.str = str;
+      this.scope = scope;
+      this.scripthash = (scope == SCOPE_SCRIPTHASH) ? scripthash : null;
+      this.seq = seq;
+      this.chain_gen = chain_gen;
+    }
+  }
+
+  private static class Entry
+  {
+    final byte[] result;
+    final int scope;
+    final ByteString scripthash;
+    final long expires;
+
+    Entry(byte[] result, int scope, ByteString scripthash, long expires)
+    {
+      this.result = result;
+      this.scope = scope;
+      this.scripthash = scripthash;
+      this.expires = expires;
+    }
+  }
+
+}
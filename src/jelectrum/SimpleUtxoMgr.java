@@ -230,6 +230,14 @@ public class SimpleUtxoMgr implements UtxoSource
     TimeRecord.record(t2, "utxo_remove_hash");
     }
 
+    // Balances and unspent lists cached while the block was going in are stale now
+    if (jelly.getResponseCache() != null)
+    {
+      HashSet<ByteString> touched = new HashSet<ByteString>(keys_to_add.keySet());
+      touched.addAll(keys_to_remove.keySet());
+      jelly.getResponseCache().invalidateScriptHashes(touched);
+    }
+
     long t2 = System.nanoTime();
     last_added_block_hash = b.getHash();
     TimeRecord.record(t2, "utxo_gethash");
@@ -253,6 +261,11 @@ public class SimpleUtxoMgr implements UtxoSource
       rollTransaction(tx);
     }
 
+    if (jelly.getResponseCache() != null)
+    {
+      jelly.getResponseCache().invalidateReorg();
+    }
+
   }
 
   private void addTransactionKeys(Transaction tx, Multimap<ByteString, ByteString> keys_to_add, Multimap<ByteString, ByteString> keys_to_remove, Map<Sha256Hash, Transaction> block_tx_map)
@@ -2,21 +2,24 @@ package jelectrum;
 import java.net.Socket;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.File;
 import java.io.IOException;
 
 import java.io.PrintStream;
 
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.Scanner;
 import java.util.Random;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayDeque;
+import java.io.ByteArrayOutputStream;
 
 import org.json.JSONObject;
 import org.json.JSONArray;
@@ -28,17 +31,23 @@ import org.bitcoinj.core.Block;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import com.google.protobuf.ByteString;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 public class StratumConnection
 {
     //ghostbird, dirtnerd, beancurd, thingword, absurd
     public static final String JELECTRUM_VERSION="absurd";
-    public static final String PROTO_VERSION="1.1";
-    public static final boolean use_thread_per_request=false;
+    public static final String PROTO_VERSION="1.4";
+    public static final int MAX_BATCH_SIZE=1000;
+    public static final int MAX_HEADERS=2016;
 
     public static ArrayList<String> SUPPORTED_PROTOS;
+    static
     {
       SUPPORTED_PROTOS = new ArrayList<>();
+      SUPPORTED_PROTOS.add("1.4");
+      SUPPORTED_PROTOS.add("1.3");
+      SUPPORTED_PROTOS.add("1.2");
       SUPPORTED_PROTOS.add("1.1");
       SUPPORTED_PROTOS.add("0.10");
     }
@@ -46,6 +55,9 @@ public class StratumConnection
     private Jelectrum jelectrum;
     private StratumServer server;
     private Socket sock;
+    private boolean websocket;
+    private volatile InputStream sock_in;
+    private volatile OutputStream sock_out;
     private String connection_id;
     private AtomicLong last_network_action;
     private volatile boolean open;
@@ -53,26 +65,37 @@ public class StratumConnection
     private TXUtil tx_util;
 
     private long connection_start_time;
-    private String version_info;
-    private String client_version;
-    private String client_protocol="0.10";
+    private volatile String version_info;
+    private volatile String client_version;
+    private volatile String client_protocol="0.10";
     private AtomicInteger subscription_count = new AtomicInteger(0);
     private RateLimit session_rate_limit;
+    private RateLimit ip_rate_limit;
+    private final java.util.concurrent.atomic.AtomicBoolean ip_rate_held = new java.util.concurrent.atomic.AtomicBoolean(false);
 
-    private HashSet<Integer> chunks_downloaded;
+    private Set<Integer> chunks_downloaded;
 
-    private LinkedBlockingQueue<JSONObject> out_queue = new LinkedBlockingQueue<JSONObject>();
+    private OutboundQueue out_queue;
+
+    // While running a request (or a batch member), its reply goes here
+    // instead of out_queue
+    private ThreadLocal<EncodedMessage[]> reply_slot = new ThreadLocal<EncodedMessage[]>();
+
+    // Requests in the order they were read, replies go out in this order
+    // even if later requests finish first
+    private ArrayDeque<PendingReply> pending_replies = new ArrayDeque<PendingReply>();
+    private ReentrantLock pending_lock = new ReentrantLock();
+    private Semaphore in_flight;
+    private int max_request_bytes;
     
     private long get_client_id=-1;
 
     public static final long PRINT_INFO_DELAY=15000L;
 
-    private String banner="Jelectrum";
-
     private boolean detail_logs = false;
 
 
-    public StratumConnection(Jelectrum jelectrum, StratumServer server, Socket sock, String connection_id)
+    public StratumConnection(Jelectrum jelectrum, StratumServer server, Socket sock, String connection_id, boolean websocket)
       throws IOException
     {
       
@@ -82,39 +105,76 @@ public class StratumConnection
         this.server = server;
         this.config = server.getConfig();
         this.sock = sock;
+        this.websocket = websocket;
         this.connection_id = connection_id;
 
         detail_logs = jelectrum.getConfig().getBoolean("connection_detail_logs");
 
         open=true;
 
-        chunks_downloaded = new HashSet<>();
+        chunks_downloaded = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 
         last_network_action=new AtomicLong(System.nanoTime());
         if (detail_logs)
         jelectrum.getEventLog().log("New connection from: " + sock + " " + connection_id);
         connection_start_time = System.currentTimeMillis();
 
-        if (jelectrum.getConfig().get("banner_file") != null)
+        int max_in_flight = 16;
+        if (jelectrum.getConfig().isSet("max_requests_in_flight"))
         {
-          String banner_file_path = jelectrum.getConfig().get("banner_file");
-          DataInputStream d_in = new DataInputStream(new FileInputStream(banner_file_path));
+          max_in_flight = jelectrum.getConfig().getInt("max_requests_in_flight");
+        }
+        in_flight = new Semaphore(max_in_flight);
 
-          int len = (int)new File(banner_file_path).length();
-          byte b[] = new byte[len];
-          d_in.readFully(b);
-          banner = new String(b);
-          d_in.close();
+        max_request_bytes = 1048576;
+        if (jelectrum.getConfig().isSet("max_request_bytes"))
+        {
+          max_request_bytes = jelectrum.getConfig().getInt("max_request_bytes");
+        }
 
+        long max_out_bytes = 4L * 1048576L;
+        if (jelectrum.getConfig().isSet("max_out_queue_bytes"))
+        {
+          max_out_bytes = Long.parseLong(jelectrum.getConfig().get("max_out_queue_bytes"));
+        }
+        long slow_grace = 30000L;
+        if (jelectrum.getConfig().isSet("slow_client_grace_ms"))
+        {
+          slow_grace = Long.parseLong(jelectrum.getConfig().get("slow_client_grace_ms"));
         }
+        out_queue = new OutboundQueue(max_out_bytes, slow_grace);
+
         if (jelectrum.getConfig().isSet("session_rate_limit"))
         {
           session_rate_limit = new RateLimit(jelectrum.getConfig().getDouble("session_rate_limit"), 2.0);
         }
+        ip_rate_limit = server.acquireIpRateLimit(sock.getInetAddress());
+        ip_rate_held.set(ip_rate_limit != null);
     
-        new OutThread().start();
-        new InThread().start();
+        // InThread starts the OutThread once the streams are open
+        server.getConnectionThreads().newThread(new InThread(), "InThread").start();
+
+    }
 
+    /**
+     * For a websocket this does the upgrade handshake, so it happens on the
+     * connection's own thread rather than the accept loop
+     */
+    private void openStreams()
+        throws IOException
+    {
+        if (websocket)
+        {
+            WebSocketStream ws = new WebSocketStream(sock.getInputStream(), sock.getOutputStream(), max_request_bytes);
+            ws.handshake();
+            sock_in = ws.getInputStream();
+            sock_out = ws.getOutputStream();
+        }
+        else
+        {
+            sock_in = sock.getInputStream();
+            sock_out = sock.getOutputStream();
+        }
     }
 
     public void close()
@@ -125,6 +185,21 @@ public class StratumConnection
             sock.close();
         }
         catch(Throwable t){}
+        jelectrum.getElectrumNotifier().connectionClosed(this);
+        server.connectionClosed(this);
+    }
+
+    /**
+     * True only the first time, so the per IP bucket is given back once
+     */
+    public boolean releaseIpRateLimit()
+    {
+        return ip_rate_held.compareAndSet(true, false);
+    }
+
+    public java.net.InetAddress getInetAddress()
+    {
+        return sock.getInetAddress();
     }
 
     public boolean isOpen()
@@ -157,48 +232,251 @@ public class StratumConnection
 
     public void sendMessage(JSONObject msg)
     {
+        sendMessage(new EncodedMessage(msg));
+    }
+
+    /**
+     * Sends the reply and stores its result in the response cache if there is a key
+     */
+    public void sendMessage(JSONObject msg, ResponseCache.Key cache_key)
+    {
+        if (cache_key == null)
+        {
+            sendMessage(msg);
+        }
+        else
+        {
+            sendMessage(jelectrum.getResponseCache().put(cache_key, msg));
+        }
+    }
+
+    /**
+     * Sends a reply around an already encoded result, see StreamingReply
+     */
+    public void sendResult(Object id, byte[] result, ResponseCache.Key cache_key)
+    {
+        if (cache_key == null)
+        {
+            sendMessage(EncodedMessage.forResult(id, result));
+        }
+        else
+        {
+            sendMessage(jelectrum.getResponseCache().putResult(cache_key, id, result));
+        }
+    }
+
+    /**
+     * Returns true if the reply came from the response cache and was sent
+     */
+    private boolean sendCached(ResponseCache.Key cache_key, Object id)
+    {
+        if (cache_key == null) return false;
+        EncodedMessage msg = jelectrum.getResponseCache().get(cache_key, id);
+        if (msg == null) return false;
+        sendMessage(msg);
+        return true;
+    }
+
+    /**
+     * The message may be shared with other connections
+     */
+    public void sendMessage(EncodedMessage msg)
+    {
+        EncodedMessage[] slot = reply_slot.get();
+        if ((slot != null) && (slot[0] == null))
+        {
+            slot[0] = msg;
+            return;
+        }
+        sendNotification(msg);
+    }
+
+    /**
+     * Anything that isn't the reply to the request being run, such as a
+     * subscription push.  It goes out after the replies to every request
+     * already read, so a notification never gets ahead of the reply to
+     * the subscribe that asked for it.
+     */
+    public void sendNotification(EncodedMessage msg)
+    {
+        pending_lock.lock();
+        try
+        {
+            PendingReply last = pending_replies.peekLast();
+            if (last != null)
+            {
+                if (last.after == null) last.after = new ArrayList<EncodedMessage>(2);
+                last.after.add(msg);
+                return;
+            }
+            enqueueOut(msg);
+        }
+        finally
+        {
+            pending_lock.unlock();
+        }
+    }
+
+    private void enqueueOut(EncodedMessage msg)
+    {
+        if (!open) return;
+        if (!out_queue.offer(msg))
+        {
+            jelectrum.getEventLog().log(connection_id + " - Closing slow connection with "
+              + out_queue.getQueuedBytes() + " bytes queued");
+            server.noteSlowClientDropped();
+            close();
+        }
+    }
+
+    public OutboundQueue getOutQueue()
+    {
+        return out_queue;
+    }
+
+    /**
+     * Marks the request done and sends every reply at the head of the
+     * line that is ready, so replies keep the order of the requests
+     */
+    private void completeRequest(PendingReply pending, EncodedMessage reply)
+    {
+        pending_lock.lock();
+        try
+        {
+            pending.reply = reply;
+            pending.done = true;
+            while((!pending_replies.isEmpty()) && (pending_replies.peek().done))
+            {
+                PendingReply p = pending_replies.poll();
+                if (p.reply != null) enqueueOut(p.reply);
+                if (p.after != null)
+                {
+                    for(EncodedMessage m : p.after) enqueueOut(m);
+                }
+                in_flight.release();
+            }
+        }
+        finally
+        {
+            pending_lock.unlock();
+        }
+    }
+
+    /**
+     * Once this connection has too many requests in flight, this blocks
+     * the InThread so nothing more is read from the socket until some finish
+     */
+    private PendingReply startRequest()
+        throws InterruptedException
+    {
+        in_flight.acquire();
+        PendingReply pending = new PendingReply();
+        pending_lock.lock();
         try
         {
-            out_queue.put(msg); 
+            pending_replies.add(pending);
+        }
+        finally
+        {
+            pending_lock.unlock();
+        }
+        return pending;
+    }
+
+    private static class PendingReply
+    {
+        EncodedMessage reply;
+        boolean done;
+        // Notifications held back until this reply has gone
+        ArrayList<EncodedMessage> after;
+    }
+
+    private class RequestWork implements Runnable
+    {
+        private PendingReply pending;
+        private Object msg;
+        private int input_size;
+
+        public RequestWork(PendingReply pending, Object msg, int input_size)
+        {
+            this.pending = pending;
+            this.msg = msg;
+            this.input_size = input_size;
         }
-        catch(java.lang.InterruptedException e)
+
+        public void run()
         {
-            throw new RuntimeException(e);
+            EncodedMessage[] slot = new EncodedMessage[1];
+            reply_slot.set(slot);
+            try
+            {
+                if (msg instanceof JSONArray)
+                {
+                    processBatch((JSONArray) msg, input_size);
+                }
+                else
+                {
+                    processInMessage((JSONObject) msg, input_size);
+                }
+            }
+            catch(Throwable t)
+            {
+                jelectrum.getEventLog().log(connection_id + ": error in processing: " + t);
+                close();
+            }
+            finally
+            {
+                reply_slot.remove();
+                if ((slot[0] != null) && (msg instanceof JSONObject))
+                {
+                    METHODS.getStats(((JSONObject) msg).optString("method", null)).recordOut(slot[0].size());
+                }
+                completeRequest(pending, slot[0]);
+            }
         }
     }
 
 
 
-    public class OutThread extends Thread
+    /**
+     * Takes the bytes from the session, IP and global buckets and returns
+     * how long to wait before writing them.  Doesn't block, so a transport
+     * with an event loop can schedule the write instead of sleeping.
+     */
+    public long reserveRate(int bytes)
     {
-        public OutThread()
+        long wait = server.reserveGlobalRate(bytes);
+        if (session_rate_limit != null)
         {
-            setName("OutThread");
-            setDaemon(true);
+            wait = Math.max(wait, session_rate_limit.reserve(bytes));
         }
+        if (ip_rate_limit != null)
+        {
+            wait = Math.max(wait, ip_rate_limit.reserve(bytes));
+        }
+        return wait;
+    }
+
+    public class OutThread implements Runnable
+    {
 
         public void run()
         {
             boolean info_printed=false;
             try
             {
-                PrintStream out = new PrintStream(sock.getOutputStream());
+                PrintStream out = new PrintStream(sock_out);
                 while(open)
                 {
                     //Using poll rather than take so this thread will
                     //exit if the connection is closed.  Otherwise,
                     //it would wait forever on this queue
-                    JSONObject msg = out_queue.poll(30, TimeUnit.SECONDS);
+                    EncodedMessage msg = out_queue.poll(30000L);
                     if (msg != null)
                     {
 
-                        String msg_str = msg.toString(0);
-                        if (session_rate_limit != null)
-                        {
-                          session_rate_limit.waitForRate(msg_str.length());
-                        }
-                        server.applyGlobalRateLimit(msg_str.length());
-                        out.println(msg_str);
+                        RateLimit.sleepNanos(reserveRate(msg.size()));
+                        out.write(msg.getBytes(), 0, msg.size());
                         out.flush();
 
                         //System.out.println("Out: " + msg.toString());
@@ -228,48 +506,51 @@ public class StratumConnection
 
         }
     }
-    public class InThread extends Thread
+    public class InThread implements Runnable
     {
-        public InThread()
-        {
-            setName("InThread");
-            setDaemon(true);
-        }
 
         public void run()
         {
-          String line = null;
             try
             {
-                Scanner scan = new Scanner(sock.getInputStream());
+                openStreams();
+                server.getConnectionThreads().newThread(new OutThread(), "OutThread").start();
 
-                while(open)
+                LineFramer framer = new LineFramer(sock_in, max_request_bytes);
+
+                while(open && framer.nextLine())
                 {
-                    line = scan.nextLine();
                     updateLastNetworkAction();
-                    int input_size = line.length();
-                    line = line.trim();
-                    if (line.length() > 0)
+                    int input_size = framer.getLineLength();
+                    String line = framer.getLineString().trim();
+                    if (line.startsWith("["))
+                    {
+                        // Run here, the members go to the request pool
+                        new RequestWork(startRequest(), new JSONArray(line), input_size).run();
+                    }
+                    else if (line.length() > 0)
                     {
                         JSONObject msg = new JSONObject(line);
-                        if (use_thread_per_request)
+                        RequestWork work = new RequestWork(startRequest(), msg, input_size);
+                        if ("server.version".equals(msg.optString("method")))
                         {
-                          new InWorkerThread(msg, input_size).start();
+                          // Later requests depend on the negotiated protocol
+                          work.run();
                         }
                         else
                         {
-
-                          processInMessage(msg, input_size);
+                          server.getRequestPool().execute(work);
                         }
                     }
 
                 }
+                if (detail_logs)  
+                  jelectrum.getEventLog().log("Connection closed " + sock + " " + connection_id);
 
             }
-            catch(java.util.NoSuchElementException e)
+            catch(LineFramer.LineTooLongException e)
             {
-              if (detail_logs)  
-                jelectrum.getEventLog().log("Connection closed " + sock + " " + connection_id);
+                jelectrum.getEventLog().log("Request too large (" + sock + " " +connection_id+"): " + e.getMessage());
             }
             catch(java.lang.NullPointerException npe)
             {
@@ -289,417 +570,1077 @@ public class StratumConnection
         }
     }
 
-    public class InWorkerThread extends Thread
+    /**
+     * Runs the members of a JSON-RPC batch on the shared request pool and
+     * sends their replies back as one array, in request order.  Members that
+     * don't get a reply are left out.
+     */
+    private void processBatch(JSONArray batch, int input_size)
+        throws Exception
     {
-      private JSONObject msg;
-      private int input_size;
-      public InWorkerThread(JSONObject msg, int input_size)
-      {
-        this.msg = msg;
-        this.input_size = input_size;
-        setName("InWorkerThread");
-        setDaemon(true);
-      }
-
-      public void run()
-      {
-        try
+        if ((batch.length() == 0) || (batch.length() > MAX_BATCH_SIZE))
         {
-          processInMessage(msg, input_size);
+            JSONObject reply = new JSONObject();
+            reply.put("id", JSONObject.NULL);
+            reply.put("jsonrpc","2.0");
+            reply.put("error", "batch must have between 1 and " + MAX_BATCH_SIZE + " requests");
+            sendMessage(reply);
+            return;
         }
-        catch(Throwable t)
-        {
-          if (detail_logs)
-          {
-            jelectrum.getEventLog().log(connection_id + ": error in processing: " + t);
-          }
-          close();
-        }
-      }
-    }
+        logRequest("batch of " + batch.length(), input_size, 0);
 
-    private void processInMessage(JSONObject msg, int input_size)
-        throws Exception
-    {
-        long idx = msg.optLong("id",-1);
-        Object id = msg.opt("id");
-        JSONObject reply = new JSONObject();
-        reply.put("id", id);
-        reply.put("jsonrpc","2.0");
-        try
+        // Null for members that aren't request objects
+        ArrayList<Future<EncodedMessage> > futures = new ArrayList<>();
+        for(int i=0; i<batch.length(); i++)
         {
-        
-            if (!msg.has("method"))
-            {
-                jelectrum.getEventLog().alarm(connection_id + " - Unknown message: " + msg.toString());
-                return;
-            }
-            String method = msg.getString("method");
-
-
-            if (method.equals("server.version"))
-            {
-                  JSONArray version_array = msg.getJSONArray("params");
-
-                  client_version = version_array.getString(0);
-                  
-                  if (version_array.optString(1) != null)
-                  {
-                    client_protocol = selectProto(version_array.optString(1), version_array.optString(1));
-                    if (client_protocol == null) client_protocol = "0.10";
-
-                  }
-                  JSONArray proto_array = version_array.optJSONArray(1);
-                  if (proto_array != null)
-                  {   
-                    String min_proto = proto_array.getString(0);
-                    String max_proto = proto_array.getString(1);
-                    client_protocol = selectProto(min_proto, max_proto);
-                  }
-                  if (client_protocol == null)
-                  {
-                    reply.put("error", "unsupported protocol");
-                    jelectrum.getEventLog().log("Unable to agree on proto with: " + msg);
-                  }
-                  else
-                  {
-                    if (client_protocol.compareTo("1.1") >= 0)
-                    {
-                      JSONArray result_arr = new JSONArray();
-                      result_arr.put(String.format("jelectum %s", JELECTRUM_VERSION));
-                      result_arr.put(client_protocol);
-                      reply.put("result", result_arr);
-                    }
-                    else
-                    {
-                      reply.put("result", client_protocol);
-                    }
-                  }
-
-                  if (version_info == null)
-                  {
-                    //if (detail_logs)
-                    jelectrum.getEventLog().log(String.format("%s - Version set from client (%s) using proto (%s)", connection_id, client_version, client_protocol));
-                  }
-                  
-                version_info = msg.get("params").toString();
-
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
-            }
-            else if (method.equals("server.banner"))
-            {
-                reply.put("result",banner);
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
-            }
-            else if (method.equals("blockchain.headers.subscribe"))
+            JSONObject msg = batch.optJSONObject(i);
+            if (msg == null)
             {
-                logRequest(method, input_size, 0);
-                jelectrum.getElectrumNotifier().registerBlockchainHeaders(this, id, true);
+                futures.add(null);
             }
-            else if ((method.equals("blockchain.numblocks.subscribe")) && (client_protocol.compareTo("1.1") < 0))
+            else
             {
-                //Should send this on each new block:
-                //{"id": 1, "result": {"nonce": 3114737334, "prev_block_hash": "000000000000000089e1f388af7cda336b6241b3f0b0ca36def7a8f22e44d39b", "timestamp": 1387995813, "merkle_root": "0debf5bd535624a955d229337a9bf3da5f370cc5a1f5fbee7261b0bdd0bd0f10", "block_height": 276921, "version": 2, "bits": 419668748}}
-
-                logRequest(method, input_size, 0);
-                jelectrum.getElectrumNotifier().registerBlockCount(this, id, true);
+                futures.add(server.getRequestPool().submit(new BatchMember(msg, input_size / batch.length())));
             }
-            else if (method.equals("blockchain.address.get_history"))
-            {
-                JSONArray params = msg.getJSONArray("params");
-                String address = params.getString(0);
-                logRequest(method, input_size, 0);
-                ByteString scripthash = tx_util.getScriptHashForAddress(address);
-                jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, true, true);
+        }
 
-            }
-            else if (method.equals("blockchain.scripthash.get_history"))
-            {
-                JSONArray params = msg.getJSONArray("params");
-                ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
-                logRequest(method, input_size, 0);
-                jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, true, true);
-            }
-            else if (method.equals("blockchain.address.get_mempool"))
+        ByteArrayOutputStream b_out = new ByteArrayOutputStream();
+        b_out.write('[');
+        int count = 0;
+        for(Future<EncodedMessage> f : futures)
+        {
+            EncodedMessage reply = null;
+            if (f == null)
             {
-                JSONArray params = msg.getJSONArray("params");
-                String address = params.getString(0);
-                logRequest(method, input_size, 0);
-                ByteString scripthash = tx_util.getScriptHashForAddress(address);
-                jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, false, true);
+                JSONObject invalid = new JSONObject();
+                invalid.put("id", JSONObject.NULL);
+                invalid.put("jsonrpc","2.0");
+                invalid.put("error", "invalid request");
+                reply = new EncodedMessage(invalid);
             }
-            else if (method.equals("blockchain.scripthash.get_mempool"))
+            else
             {
-                JSONArray params = msg.getJSONArray("params");
-                ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
-                logRequest(method, input_size, 0);
-                jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, false, true);
+                reply = f.get();
             }
- 
-            else if ((method.equals("blockchain.address.get_proof")) && (client_protocol.compareTo("1.1") < 0))
-            {
-                
-                JSONArray params = msg.getJSONArray("params");
-                String address = params.getString(0);
-                logRequest(method, input_size, 0);
-                ByteString scripthash = tx_util.getScriptHashForAddress(address);
-                jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, true, true);
+            if (reply == null) continue;
+            if (count > 0) b_out.write(',');
+            b_out.write(reply.getBytes(), 0, reply.size() - 1);
+            count++;
+        }
+        b_out.write(']');
+        b_out.write('\n');
 
-            }
-            else if (method.equals("blockchain.address.get_balance"))
-            {
-                JSONArray params = msg.getJSONArray("params");
-                String address = params.getString(0);
-                ByteString scripthash = tx_util.getScriptHashForAddress(address);
-                jelectrum.getElectrumNotifier().sendAddressBalance(this, id, scripthash);
-            }
-            else if (method.equals("blockchain.scripthash.get_balance"))
-            {
-                JSONArray params = msg.getJSONArray("params");
-                ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
-                jelectrum.getElectrumNotifier().sendAddressBalance(this, id, scripthash);
-            }
-            else if (method.equals("blockchain.address.listunspent"))
-            {
-              JSONArray params = msg.getJSONArray("params");
-              logRequest(method, input_size, 0);
+        if (count > 0)
+        {
+            sendMessage(new EncodedMessage(b_out.toByteArray()));
+        }
+    }
 
-              String address = params.getString(0);
-              ByteString scripthash = tx_util.getScriptHashForAddress(address);
-              jelectrum.getElectrumNotifier().sendUnspent(this, id, scripthash);
-            }
-             else if (method.equals("blockchain.scripthash.listunspent"))
-            {
-              JSONArray params = msg.getJSONArray("params");
-              logRequest(method, input_size, 0);
-              ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
-              jelectrum.getElectrumNotifier().sendUnspent(this, id, scripthash);
-            }
-            else if (method.equals("blockchain.address.subscribe"))
-            {
-                JSONArray params = msg.getJSONArray("params");
+    private class BatchMember implements Callable<EncodedMessage>
+    {
+        private JSONObject msg;
+        private int input_size;
 
-                logRequest(method, input_size, 0);
+        public BatchMember(JSONObject msg, int input_size)
+        {
+            this.msg = msg;
+            this.input_size = input_size;
+        }
 
-                String address = params.getString(0);
-                ByteString scripthash = tx_util.getScriptHashForAddress(address);
-                jelectrum.getElectrumNotifier().registerBlockchainAddress(this, id, true, scripthash);
-                subscription_count.getAndIncrement();
-            }
-            else if (method.equals("blockchain.scripthash.subscribe"))
+        public EncodedMessage call()
+            throws Exception
+        {
+            // Might be running on the thread that is waiting for the batch
+            EncodedMessage[] outer = reply_slot.get();
+            EncodedMessage[] slot = new EncodedMessage[1];
+            reply_slot.set(slot);
+            try
             {
-                JSONArray params = msg.getJSONArray("params");
-                logRequest(method, input_size, 0);
-
-                ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
-                subscription_count.getAndIncrement();
-
-                jelectrum.getElectrumNotifier().registerBlockchainAddress(this, id, true, scripthash);
+                processInMessage(msg, input_size);
             }
- 
-            else if (method.equals("server.peers.subscribe"))
+            finally
             {
-                JSONArray lst = jelectrum.getPeerManager().getPeers();
-                reply.put("result", lst);
-
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
+                reply_slot.set(outer);
             }
-            else if (method.equals("server.features"))
+            if (slot[0] != null)
             {
-                JSONObject data = jelectrum.getPeerManager().getServerFeatures();
-                reply.put("result", data);
-
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
+                METHODS.getStats(msg.optString("method", null)).recordOut(slot[0].size());
             }
-            else if (method.equals("server.add_peer"))
-            {
-                JSONArray params = msg.getJSONArray("params");
-                jelectrum.getPeerManager().addPeers(params);
+            return slot[0];
+        }
+    }
 
-                reply.put("result", "OK");
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
-            }
-            else if (method.equals("server.donation_address"))
-            {
-             
-              String addr = "";
-              if (config.isSet("donation_address"))
-              {
-                addr = config.get("donation_address");
-              }
-              reply.put("result", addr);
-              logRequest(method, input_size, reply.toString().length());
+    private void processInMessage(JSONObject msg, int input_size)
+        throws Exception
+    {
+        Object id = msg.opt("id");
+        JSONObject reply = new JSONObject();
+        reply.put("id", id);
+        reply.put("jsonrpc","2.0");
 
-              sendMessage(reply);
-            }
-            else if (method.equals("blockchain.transaction.get"))
+        String method = msg.optString("method", null);
+        MethodRegistry.MethodStats stats = METHODS.getStats(method);
+        long t1 = System.nanoTime();
+        boolean error = false;
+        try
+        {
+        
+            if (method == null)
             {
+                jelectrum.getEventLog().alarm(connection_id + " - Unknown message: " + msg.toString());
+                error = true;
+                return;
+            }
 
-                JSONArray params = msg.getJSONArray("params");
-                if ((client_protocol.compareTo("1.1") >= 0) && (msg.length() != 1))
-                {
-                  reply.put("error","blockchain.transaction.get takes exactly one parameter");
-                }
-                else
-                {
-
-                Sha256Hash hash = null;
-                  try
-                  {
-
-                    hash =new Sha256Hash( params.getString(0));
-                  }
-                  catch(Throwable t)
-                  {
-                    throw new Exception("Bad transaction hash: " + params.getString(0));
-                  }
-
-                  Transaction tx = tx_util.getTransaction(hash);
-                  if (tx==null)
-                  {
-                      reply.put("error","unknown transaction");
-                  }
-                  else
-                  {
-                      byte buff[]= tx.bitcoinSerialize();
-                      reply.put("result", Util.getHexString(buff));
-                  }
-                }
+            MethodRegistry.Handler handler = METHODS.lookup(method, client_protocol);
+            if (handler == null)
+            {
+                jelectrum.getEventLog().alarm(connection_id + " - Unknown electrum method: " + method);
+                System.out.println(msg);
+                reply.put("error","unknown method - " + method);
                 logRequest(method, input_size, reply.toString().length());
-
                 sendMessage(reply);
             }
-            else if (method.equals("blockchain.block.get_header"))
+            else
             {
-                 JSONArray arr = msg.getJSONArray("params");
-                 int height = arr.getInt(0);
-
-                 Sha256Hash block_hash = jelectrum.getBlockChainCache().getBlockHashAtHeight(height);
-                 StoredBlock blk = jelectrum.getDB().getBlockStoreMap().get(block_hash);
-
-                 JSONObject result = new JSONObject();
-                 jelectrum.getElectrumNotifier().populateBlockData(blk, result);
-
-                 reply.put("result", result);
-                 logRequest(method, input_size, reply.toString().length());
-
-                 sendMessage(reply);
+                handler.handle(this, new Request(msg, id, reply, method, input_size));
             }
-            else if (method.equals("blockchain.transaction.broadcast"))
-            {
-                JSONArray arr = msg.getJSONArray("params");
-                String hex = arr.getString(0);
-
-                byte[] tx_data = new Hex().decode(hex.getBytes());
-                Transaction tx = new Transaction(jelectrum.getNetworkParameters(), tx_data);
-
-                if (jelectrum.getBitcoinRPC()!=null)
-                {
-                  jelectrum.getBitcoinRPC().submitTransaction(hex);
+            if (reply.has("error")) error = true;
+        }
+        catch(Throwable t)
+        {
+                error = true;
+                reply.put("error","Exception: " + t);
+                sendMessage(reply);
+                jelectrum.getEventLog().log(connection_id + " - error: " + t);
+                jelectrum.getEventLog().log(t);
+                if (detail_logs) {
+                  t.printStackTrace();
                 }
+                close();
+        }
+        finally
+        {
+            stats.record(System.nanoTime() - t1, input_size, error);
+        }
+    }
 
-                reply.put("result", tx.getHash().toString());
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
+    /**
+     * What a method handler gets to work with
+     */
+    public static class Request
+    {
+        final JSONObject msg;
+        final Object id;
+        final JSONObject reply;
+        final String method;
+        final int input_size;
 
-                //jelectrum.getImporter().saveTransaction(tx);
+        Request(JSONObject msg, Object id, JSONObject reply, String method, int input_size)
+        {
+            this.msg = msg;
+            this.id = id;
+            this.reply = reply;
+            this.method = method;
+            this.input_size = input_size;
+        }
+    }
+
+    private static final MethodRegistry METHODS = new MethodRegistry();
+    static
+    {
+        METHODS.register("server.version", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleServerVersion(req); }
+        });
+        METHODS.register("server.banner", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleServerBanner(req); }
+        });
+        METHODS.register("blockchain.headers.subscribe", null, "1.4", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleHeadersSubscribe(req, false); }
+        });
+        METHODS.register("blockchain.headers.subscribe", "1.4", null, new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleHeadersSubscribe(req, true); }
+        });
+        METHODS.register("blockchain.numblocks.subscribe", null, "1.1", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleNumblocksSubscribe(req); }
+        });
+        METHODS.register("blockchain.address.get_history", null, "1.4", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleAddressGetHistory(req); }
+        });
+        METHODS.register("blockchain.scripthash.get_history", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleScripthashGetHistory(req); }
+        });
+        METHODS.register("blockchain.address.get_mempool", null, "1.4", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleAddressGetMempool(req); }
+        });
+        METHODS.register("blockchain.scripthash.get_mempool", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleScripthashGetMempool(req); }
+        });
+        METHODS.register("blockchain.address.get_proof", null, "1.1", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleAddressGetProof(req); }
+        });
+        METHODS.register("blockchain.address.get_balance", null, "1.4", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleAddressGetBalance(req); }
+        });
+        METHODS.register("blockchain.scripthash.get_balance", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleScripthashGetBalance(req); }
+        });
+        METHODS.register("blockchain.address.listunspent", null, "1.4", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleAddressListunspent(req); }
+        });
+        METHODS.register("blockchain.scripthash.listunspent", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleScripthashListunspent(req); }
+        });
+        METHODS.register("blockchain.address.subscribe", null, "1.4", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleAddressSubscribe(req); }
+        });
+        METHODS.register("blockchain.scripthash.subscribe", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleScripthashSubscribe(req); }
+        });
+        METHODS.register("server.peers.subscribe", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleServerPeersSubscribe(req); }
+        });
+        METHODS.register("server.features", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleServerFeatures(req); }
+        });
+        METHODS.register("server.add_peer", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleServerAddPeer(req); }
+        });
+        METHODS.register("server.donation_address", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleServerDonationAddress(req); }
+        });
+        METHODS.register("server.ping", "1.2", null, new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleServerPing(req); }
+        });
+        METHODS.register("blockchain.transaction.get", null, "1.1", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleTransactionGet(req, 0); }
+        });
+        METHODS.register("blockchain.transaction.get", "1.1", "1.2", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleTransactionGet(req, 1); }
+        });
+        METHODS.register("blockchain.transaction.get", "1.2", null, new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleTransactionGet(req, 2); }
+        });
+        METHODS.register("blockchain.transaction.id_from_pos", "1.4", null, new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleTransactionIdFromPos(req); }
+        });
+        METHODS.register("blockchain.block.get_header", null, "1.4", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleBlockGetHeader(req); }
+        });
+        METHODS.register("blockchain.transaction.broadcast", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleTransactionBroadcast(req); }
+        });
+        METHODS.register("blockchain.transaction.get_merkle", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleTransactionGetMerkle(req); }
+        });
+        METHODS.register("blockchain.block.get_chunk", null, "1.4", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleBlockGetChunk(req); }
+        });
+        METHODS.register("blockchain.block.header", "1.3", null, new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleBlockHeader(req); }
+        });
+        METHODS.register("blockchain.block.headers", "1.2", null, new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleBlockHeaders(req); }
+        });
+        METHODS.register("blockchain.estimatefee", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleEstimatefee(req); }
+        });
+        METHODS.register("mempool.get_fee_histogram", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleMempoolGetFeeHistogram(req); }
+        });
+        METHODS.register("blockchain.relayfee", new MethodRegistry.Handler()
+        {
+            public void handle(StratumConnection conn, Request req) throws Exception { conn.handleRelayfee(req); }
+        });
+    }
+
+    public static MethodRegistry getMethodRegistry()
+    {
+        return METHODS;
+    }
+
+    private void handleServerVersion(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
 
+        JSONArray version_array = req.msg.getJSONArray("params");
+
+        client_version = version_array.getString(0);
+
+        if (version_array.optString(1) != null)
+        {
+            client_protocol = selectProto(version_array.optString(1), version_array.optString(1));
+            if (client_protocol == null) client_protocol = "0.10";
+
+        }
+        JSONArray proto_array = version_array.optJSONArray(1);
+        if (proto_array != null)
+        {
+            String min_proto = proto_array.getString(0);
+            String max_proto = proto_array.getString(1);
+            client_protocol = selectProto(min_proto, max_proto);
+        }
+        if (client_protocol == null)
+        {
+            reply.put("error", "unsupported protocol");
+            jelectrum.getEventLog().log("Unable to agree on proto with: " + req.msg);
+        }
+        else
+        {
+            if (MethodRegistry.compareProto(client_protocol, "1.1") >= 0)
+            {
+                JSONArray result_arr = new JSONArray();
+                result_arr.put(String.format("jelectum %s", JELECTRUM_VERSION));
+                result_arr.put(client_protocol);
+                reply.put("result", result_arr);
             }
-            else if (method.equals("blockchain.transaction.get_merkle"))
+            else
             {
-                 JSONArray arr = msg.getJSONArray("params");
-                 Sha256Hash tx_hash = new Sha256Hash(arr.getString(0));
-                 int height = arr.getInt(1);
+                reply.put("result", client_protocol);
+            }
+        }
+
+        if (version_info == null)
+        {
+            //if (detail_logs)
+            jelectrum.getEventLog().log(String.format("%s - Version set from client (%s) using proto (%s)", connection_id, client_version, client_protocol));
+        }
+
+        version_info = req.msg.get("params").toString();
+
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
+
+    private void handleServerBanner(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
 
-                 Sha256Hash block_hash = jelectrum.getBlockChainCache().getBlockHashAtHeight(height);
-                 Block blk = jelectrum.getDB().getBlock(block_hash).getBlock(jelectrum.getNetworkParameters());
+        reply.put("result",server.getBanner());
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
+
+    private void handleServerPing(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        reply.put("result", JSONObject.NULL);
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
 
-                 JSONObject result =  Util.getMerkleTreeForTransaction(blk.getTransactions(), tx_hash);
-                 result.put("block_height", height);
+    /**
+     * From 1.4 the header comes as {hex, height} rather than its fields
+     */
+    private void handleHeadersSubscribe(Request req, boolean raw)
+        throws Exception
+    {
+        Object id = req.id;
+
+        logRequest(req.method, req.input_size, 0);
+        jelectrum.getElectrumNotifier().registerBlockchainHeaders(this, id, true, raw);
+    }
 
-                 reply.put("result", result);
+    private void handleNumblocksSubscribe(Request req)
+        throws Exception
+    {
+        Object id = req.id;
 
-                 logRequest(method, input_size, reply.toString().length());
-                 sendMessage(reply);
+        //Should send this on each new block:
+        //{"id": 1, "result": {"nonce": 3114737334, "prev_block_hash": "000000000000000089e1f388af7cda336b6241b3f0b0ca36def7a8f22e44d39b", "timestamp": 1387995813, "merkle_root": "0debf5bd535624a955d229337a9bf3da5f370cc5a1f5fbee7261b0bdd0bd0f10", "block_height": 276921, "version": 2, "bits": 419668748}}
+
+        logRequest(req.method, req.input_size, 0);
+        jelectrum.getElectrumNotifier().registerBlockCount(this, id, true);
+    }
+
+    private void handleAddressGetHistory(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        String address = params.getString(0);
+        logRequest(req.method, req.input_size, 0);
+        ByteString scripthash = tx_util.getScriptHashForAddress(address);
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, params, scripthash);
+        if (!sendCached(cache_key, id))
+        {
+            jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, true, true, cache_key);
+        }
+    }
+
+    private void handleScripthashGetHistory(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
+        logRequest(req.method, req.input_size, 0);
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, params, scripthash);
+        if (!sendCached(cache_key, id))
+        {
+            jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, true, true, cache_key);
+        }
+    }
+
+    private void handleAddressGetMempool(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        String address = params.getString(0);
+        logRequest(req.method, req.input_size, 0);
+        ByteString scripthash = tx_util.getScriptHashForAddress(address);
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, params, scripthash);
+        if (!sendCached(cache_key, id))
+        {
+            jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, false, true, cache_key);
+        }
+    }
+
+    private void handleScripthashGetMempool(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
+        logRequest(req.method, req.input_size, 0);
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, params, scripthash);
+        if (!sendCached(cache_key, id))
+        {
+            jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, false, true, cache_key);
+        }
+    }
+
+    private void handleAddressGetProof(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        String address = params.getString(0);
+        logRequest(req.method, req.input_size, 0);
+        ByteString scripthash = tx_util.getScriptHashForAddress(address);
+        jelectrum.getElectrumNotifier().sendAddressHistory(this, id, scripthash, true, true, null);
+    }
+
+    private void handleAddressGetBalance(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        String address = params.getString(0);
+        ByteString scripthash = tx_util.getScriptHashForAddress(address);
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, params, scripthash);
+        if (!sendCached(cache_key, id))
+        {
+            jelectrum.getElectrumNotifier().sendAddressBalance(this, id, scripthash, cache_key);
+        }
+    }
+
+    private void handleScripthashGetBalance(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, params, scripthash);
+        if (!sendCached(cache_key, id))
+        {
+            jelectrum.getElectrumNotifier().sendAddressBalance(this, id, scripthash, cache_key);
+        }
+    }
+
+    private void handleAddressListunspent(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        logRequest(req.method, req.input_size, 0);
+
+        String address = params.getString(0);
+        ByteString scripthash = tx_util.getScriptHashForAddress(address);
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, params, scripthash);
+        if (!sendCached(cache_key, id))
+        {
+            jelectrum.getElectrumNotifier().sendUnspent(this, id, scripthash, cache_key);
+        }
+    }
+
+    private void handleScripthashListunspent(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        logRequest(req.method, req.input_size, 0);
+        ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, params, scripthash);
+        if (!sendCached(cache_key, id))
+        {
+            jelectrum.getElectrumNotifier().sendUnspent(this, id, scripthash, cache_key);
+        }
+    }
+
+    private void handleAddressSubscribe(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+
+        logRequest(req.method, req.input_size, 0);
+
+        String address = params.getString(0);
+        ByteString scripthash = tx_util.getScriptHashForAddress(address);
+        jelectrum.getElectrumNotifier().registerBlockchainAddress(this, id, true, scripthash, address);
+        subscription_count.getAndIncrement();
+    }
+
+    private void handleScripthashSubscribe(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        logRequest(req.method, req.input_size, 0);
+
+        ByteString scripthash = ByteString.copyFrom(Hex.decodeHex(params.getString(0).toCharArray()));
+        subscription_count.getAndIncrement();
+
+        jelectrum.getElectrumNotifier().registerBlockchainAddress(this, id, true, scripthash, null);
+    }
+
+    private void handleServerPeersSubscribe(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+        JSONObject reply = req.reply;
+
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, new JSONArray(), null);
+        if (!sendCached(cache_key, id))
+        {
+            JSONArray lst = jelectrum.getPeerManager().getPeers();
+            reply.put("result", lst);
+
+            logRequest(req.method, req.input_size, reply.toString().length());
+            sendMessage(reply, cache_key);
+        }
+    }
+
+    private void handleServerFeatures(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        JSONObject data = jelectrum.getPeerManager().getServerFeatures();
+        reply.put("result", data);
+
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
+
+    private void handleServerAddPeer(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        jelectrum.getPeerManager().addPeers(params);
+
+        reply.put("result", "OK");
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
+
+    private void handleServerDonationAddress(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        String addr = "";
+        if (config.isSet("donation_address"))
+        {
+            addr = config.get("donation_address");
+        }
+        reply.put("result", addr);
+        logRequest(req.method, req.input_size, reply.toString().length());
+
+        sendMessage(reply);
+    }
+
+    /**
+     * max_params of 0 takes whatever is sent, as before 1.1.  From 1.2 a
+     * second parameter asks for bitcoind's decoded form of the transaction.
+     */
+    private void handleTransactionGet(Request req, int max_params)
+        throws Exception
+    {
+        Object id = req.id;
+        JSONObject reply = req.reply;
+
+        JSONArray params = req.msg.getJSONArray("params");
+        ResponseCache.Key cache_key = null;
+        if ((max_params == 1) && (params.length() != 1))
+        {
+            reply.put("error","blockchain.transaction.get takes exactly one parameter");
+        }
+        else if ((max_params > 1) && ((params.length() < 1) || (params.length() > max_params)))
+        {
+            reply.put("error","blockchain.transaction.get takes a transaction hash and an optional verbose flag");
+        }
+        else if ((max_params > 1) && (params.optBoolean(1, false)))
+        {
+            handleTransactionGetVerbose(req, params.getString(0));
+            return;
+        }
+        else
+        {
+            cache_key = jelectrum.getResponseCache().getKey(req.method, params, null);
+            if (sendCached(cache_key, id)) return;
+
+            Sha256Hash hash = null;
+            try
+            {
+
+                hash =new Sha256Hash( params.getString(0));
             }
-            else if (method.equals("blockchain.block.get_chunk"))
+            catch(Throwable t)
             {
-                JSONArray arr = msg.getJSONArray("params");
-                int index = arr.getInt(0);
+                throw new Exception("Bad transaction hash: " + params.getString(0));
+            }
 
-                if (chunks_downloaded.contains(index))
-                {
-                  reply.put("error","Chunk already downloaded");
-                }
-                else
-                {
-                  chunks_downloaded.add(index);
+            Transaction tx = tx_util.getTransaction(hash);
+            if (tx==null)
+            {
+                reply.put("error","unknown transaction");
+            }
+            else
+            {
+                StreamingReply sr = new StreamingReply();
+                StreamingReply.writeHex(sr.getGenerator(), tx.bitcoinSerialize());
+                byte[] result = sr.finish();
+                logRequest(req.method, req.input_size, result.length);
+                sendResult(id, result, cache_key);
+                return;
+            }
+        }
+        logRequest(req.method, req.input_size, reply.toString().length());
 
-                  reply.put("result", jelectrum.getHeaderChunkAgent().getChunk(index));
-                  logRequest(method, input_size, reply.toString().length());
+        sendMessage(reply, cache_key);
+    }
 
-                  sendMessage(reply);
-                }
+    /**
+     * The verbose form is whatever bitcoind's getrawtransaction gives,
+     * we don't decode transactions ourselves
+     */
+    private void handleTransactionGetVerbose(Request req, String tx_hash)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        BitcoinRPC rpc = jelectrum.getBitcoinRPC();
+        if (rpc == null)
+        {
+            reply.put("error","verbose transactions need bitcoind");
+        }
+        else
+        {
+            JSONObject post = new JSONObject();
+            post.put("id", "" + new Random().nextInt());
+            post.put("method","getrawtransaction");
+            JSONArray post_params = new JSONArray();
+            post_params.put(Sha256Hash.wrap(tx_hash).toString());
+            post_params.put(1);
+            post.put("params", post_params);
+
+            JSONObject rpc_reply = rpc.sendPost(post);
+            if (rpc_reply.isNull("result"))
+            {
+                reply.put("error","unknown transaction");
             }
-            else if (method.equals("blockchain.estimatefee"))
+            else
             {
-                JSONArray arr = msg.getJSONArray("params");
-                int block = arr.getInt(0);
+                reply.put("result", rpc_reply.getJSONObject("result"));
+            }
+        }
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
+
+    /**
+     * Hash of the transaction at a position in a block, with its merkle
+     * branch if asked for
+     */
+    private void handleTransactionIdFromPos(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+        JSONObject reply = req.reply;
+
+        JSONArray arr = req.msg.getJSONArray("params");
+        int height = arr.getInt(0);
+        int tx_pos = arr.getInt(1);
+        boolean merkle = arr.optBoolean(2, false);
 
-                double fee = -1;
-                if (jelectrum.getBitcoinRPC() != null)
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, arr, null);
+        if (sendCached(cache_key, id)) return;
+
+        Sha256Hash block_hash = jelectrum.getBlockChainCache().getBlockHashAtHeight(height);
+        if (block_hash == null)
+        {
+            reply.put("error","No block at height " + height);
+        }
+        else
+        {
+            List<Transaction> txs = jelectrum.getDB().getBlock(block_hash).getBlock(jelectrum.getNetworkParameters()).getTransactions();
+            if ((tx_pos < 0) || (tx_pos >= txs.size()))
+            {
+                reply.put("error","No transaction at position " + tx_pos + " in block " + height);
+            }
+            else
+            {
+                Sha256Hash tx_hash = txs.get(tx_pos).getHash();
+                if (merkle)
                 {
-                  fee = jelectrum.getBitcoinRPC().getFeeEstimate(block);
+                    JSONObject result = new JSONObject();
+                    result.put("tx_hash", tx_hash.toString());
+                    result.put("merkle", Util.getMerkleTreeForTransaction(txs, tx_hash).getJSONArray("merkle"));
+                    reply.put("result", result);
                 }
                 else
                 {
-                  fee = Util.getFeeEstimateMap().get(block);
+                    reply.put("result", tx_hash.toString());
                 }
-
-                reply.put("result", fee);
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
             }
-            else if (method.equals("blockchain.relayfee"))
-            {
-                double fee = 1e-05;
-                /*if (jelectrum.getBitcoinRPC() != null)
-                {
-                  fee = jelectrum.getBitcoinRPC().getRelayFee();
-                }*/
+        }
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply, cache_key);
+    }
 
-                reply.put("result", fee);
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
+    private void handleBlockGetHeader(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+        JSONObject reply = req.reply;
+
+        JSONArray arr = req.msg.getJSONArray("params");
+        int height = arr.getInt(0);
+
+        ResponseCache.Key cache_key = jelectrum.getResponseCache().getKey(req.method, arr, null);
+        if (sendCached(cache_key, id)) return;
+
+        Sha256Hash block_hash = jelectrum.getBlockChainCache().getBlockHashAtHeight(height);
+        StoredBlock blk = jelectrum.getDB().getBlockStoreMap().get(block_hash);
+
+        JSONObject result = new JSONObject();
+        jelectrum.getElectrumNotifier().populateBlockData(blk, result);
+
+        reply.put("result", result);
+        logRequest(req.method, req.input_size, reply.toString().length());
+
+        sendMessage(reply, cache_key);
+    }
+
+    /**
+     * Hex header, or with a cp_height an object with the header and its
+     * proof up to the checkpoint
+     */
+    private void handleBlockHeader(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+        JSONObject reply = req.reply;
+
+        JSONArray arr = req.msg.getJSONArray("params");
+        int height = arr.getInt(0);
+        int cp_height = arr.optInt(1, 0);
+
+        byte[] header = jelectrum.getHeaderChunkAgent().getHeaderFile().getHeader(height);
+        if (header == null)
+        {
+            reply.put("error", "height " + height + " out of range");
+        }
+        else if ((cp_height != 0) && (!checkpointOk(height, cp_height)))
+        {
+            reply.put("error", "header height " + height + " must be <= cp_height " + cp_height + " which must be <= chain height");
+        }
+        if (reply.has("error"))
+        {
+            sendMessage(reply);
+            return;
+        }
+
+        StreamingReply sr = new StreamingReply();
+        JsonGenerator gen = sr.getGenerator();
+        if (cp_height == 0)
+        {
+            StreamingReply.writeHex(gen, header);
+        }
+        else
+        {
+            gen.writeStartObject();
+            gen.writeFieldName("header");
+            StreamingReply.writeHex(gen, header);
+            writeCheckpointProof(gen, height, cp_height);
+            gen.writeEndObject();
+        }
+        byte[] result = sr.finish();
+        logRequest(req.method, req.input_size, result.length);
+        sendResult(id, result, null);
+    }
+
+    /**
+     * Up to MAX_HEADERS headers from the start height as one hex string.
+     * With a cp_height, the proof is for the last one.
+     */
+    private void handleBlockHeaders(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+        JSONObject reply = req.reply;
+
+        JSONArray arr = req.msg.getJSONArray("params");
+        int start = arr.getInt(0);
+        int count = Math.min(arr.getInt(1), MAX_HEADERS);
+        int cp_height = arr.optInt(2, 0);
+
+        if ((start < 0) || (count < 0))
+        {
+            reply.put("error", "start and count must be non-negative");
+            sendMessage(reply);
+            return;
+        }
+
+        ByteBuffer headers = jelectrum.getHeaderChunkAgent().getHeaderFile().getRange(start, count);
+        int found = 0;
+        if (headers != null) found = headers.remaining() / HeaderFile.HEADER_SIZE;
+        boolean proof = (cp_height != 0) && (found > 0);
+
+        if (proof && (!checkpointOk(start + found - 1, cp_height)))
+        {
+            reply.put("error", "header height " + (start + found - 1) + " must be <= cp_height " + cp_height + " which must be <= chain height");
+            sendMessage(reply);
+            return;
+        }
+
+        StreamingReply sr = new StreamingReply();
+        JsonGenerator gen = sr.getGenerator();
+        gen.writeStartObject();
+        gen.writeNumberField("count", found);
+        gen.writeFieldName("hex");
+        if (headers == null)
+        {
+            gen.writeString("");
+        }
+        else
+        {
+            StreamingReply.writeHex(gen, headers);
+        }
+        gen.writeNumberField("max", MAX_HEADERS);
+        if (proof)
+        {
+            writeCheckpointProof(gen, start + found - 1, cp_height);
+        }
+        gen.writeEndObject();
+
+        byte[] result = sr.finish();
+        logRequest(req.method, req.input_size, result.length);
+        sendResult(id, result, null);
+    }
+
+    private boolean checkpointOk(int height, int cp_height)
+    {
+        return (height <= cp_height) && (cp_height < jelectrum.getHeaderChunkAgent().getHeaderMerkle().size());
+    }
+
+    /**
+     * Adds the branch and root fields proving the header at height is in
+     * the chain up to cp_height
+     */
+    private void writeCheckpointProof(JsonGenerator gen, int height, int cp_height)
+        throws java.io.IOException
+    {
+        HeaderMerkle merkle = jelectrum.getHeaderChunkAgent().getHeaderMerkle();
+        gen.writeArrayFieldStart("branch");
+        for(byte[] b : merkle.getBranch(height, cp_height + 1))
+        {
+            gen.writeString(Sha256Hash.wrapReversed(b).toString());
+        }
+        gen.writeEndArray();
+        gen.writeStringField("root", Sha256Hash.wrapReversed(merkle.getRoot(cp_height + 1)).toString());
+    }
+
+    private void handleTransactionBroadcast(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        JSONArray arr = req.msg.getJSONArray("params");
+        String hex = arr.getString(0);
+
+        byte[] tx_data = new Hex().decode(hex.getBytes());
+        Transaction tx = new Transaction(jelectrum.getNetworkParameters(), tx_data);
+
+        if (jelectrum.getBitcoinRPC()!=null)
+        {
+            jelectrum.getBitcoinRPC().submitTransaction(hex);
+        }
+
+        reply.put("result", tx.getHash().toString());
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+
+        //jelectrum.getImporter().saveTransaction(tx);
+    }
+
+    private void handleTransactionGetMerkle(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        JSONArray arr = req.msg.getJSONArray("params");
+        Sha256Hash tx_hash = new Sha256Hash(arr.getString(0));
+        int height = arr.getInt(1);
+
+        Sha256Hash block_hash = jelectrum.getBlockChainCache().getBlockHashAtHeight(height);
+        Block blk = jelectrum.getDB().getBlock(block_hash).getBlock(jelectrum.getNetworkParameters());
+
+        JSONObject result =  Util.getMerkleTreeForTransaction(blk.getTransactions(), tx_hash);
+        result.put("block_height", height);
+
+        reply.put("result", result);
+
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
+
+    private void handleBlockGetChunk(Request req)
+        throws Exception
+    {
+        Object id = req.id;
+        JSONObject reply = req.reply;
+
+        JSONArray arr = req.msg.getJSONArray("params");
+        int index = arr.getInt(0);
+
+        if (!chunks_downloaded.add(index))
+        {
+            reply.put("error","Chunk already downloaded");
+        }
+        else
+        {
+            StreamingReply sr = new StreamingReply();
+            ByteBuffer chunk = jelectrum.getHeaderChunkAgent().getChunk(index);
+            if (chunk == null)
+            {
+                sr.getGenerator().writeNull();
             }
-          
             else
             {
-                jelectrum.getEventLog().alarm(connection_id + " - Unknown electrum method: " + method);
-                System.out.println(msg);
-                reply.put("error","unknown method - " + method);
-                logRequest(method, input_size, reply.toString().length());
-                sendMessage(reply);
+                StreamingReply.writeHex(sr.getGenerator(), chunk);
             }
+            byte[] result = sr.finish();
+            logRequest(req.method, req.input_size, result.length);
+
+            sendResult(id, result, null);
         }
-        catch(Throwable t)
+    }
+
+    private void handleEstimatefee(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        JSONArray arr = req.msg.getJSONArray("params");
+        int block = arr.getInt(0);
+
+        double fee = jelectrum.getFeeEstimator().getFeeEstimate(block);
+
+        reply.put("result", fee);
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
+
+    private void handleMempoolGetFeeHistogram(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        JSONArray result = new JSONArray();
+        for(double[] pair : jelectrum.getMemPooler().getStore().getFeeHistogram().getCompactHistogram())
         {
-                reply.put("error","Exception: " + t);
-                sendMessage(reply);
-                jelectrum.getEventLog().log(connection_id + " - error: " + t);
-                jelectrum.getEventLog().log(t);
-                if (detail_logs) {
-                  t.printStackTrace();
-                }
-                close();
+            JSONArray p = new JSONArray();
+            p.put(pair[0]);
+            p.put((long)pair[1]);
+            result.put(p);
         }
+
+        reply.put("result", result);
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
     }
 
+    private void handleRelayfee(Request req)
+        throws Exception
+    {
+        JSONObject reply = req.reply;
+
+        double fee = 1e-05;
+        /*if (jelectrum.getBitcoinRPC() != null)
+        {
+        fee = jelectrum.getBitcoinRPC().getRelayFee();
+        }*/
+
+        reply.put("result", fee);
+        logRequest(req.method, req.input_size, reply.toString().length());
+        sendMessage(reply);
+    }
+
+
 
     public static String selectProto(String min, String max)
     {
@@ -707,7 +1648,7 @@ public class StratumConnection
 
       for(String p : SUPPORTED_PROTOS)
       {
-        if ((p.compareTo(max) <= 0) && (p.compareTo(min) >= 0)) return p;
+        if ((MethodRegistry.compareProto(p, max) <= 0) && (MethodRegistry.compareProto(p, min) >= 0)) return p;
       }
 
       return null;
@@ -6,12 +6,16 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import java.util.TreeSet;
 
 import java.net.Socket;
 import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import javax.net.ServerSocketFactory;
 
 import org.json.JSONObject;
 import org.bitcoinj.core.NetworkParameters;
@@ -19,6 +23,9 @@ import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Block;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import javax.net.ssl.SSLServerSocketFactory;
@@ -32,7 +39,10 @@ public class StratumServer
 {
     private long max_idle_time = 1800L * 1000L * 1000L * 1000L;//30 minutes in nanos
     
-    private Map<String, StratumConnection> conn_map=new HashMap<String, StratumConnection>(1024, 0.5f);
+    private ConcurrentHashMap<String, StratumConnection> conn_map=new ConcurrentHashMap<String, StratumConnection>(1024, 0.75f, 16);
+
+    // Connection ids by when they would go idle, checked again when due
+    private TimingWheel<String> idle_wheel = new TimingWheel<String>(1000000000L, 512, System.nanoTime());
 
     private Config config;
     private NetworkParameters network_params;
@@ -43,9 +53,18 @@ public class StratumServer
     private StratumServer server;
     private Jelectrum jelectrum;
     private RateLimit global_rate_limit;
+    private double ip_rate_limit;
+    // Guarded by itself, a bucket only goes once no connection holds it
+    private final HashMap<java.net.InetAddress, IpRateLimit> ip_rate_limits = new HashMap<>();
 
     private int tcp_port = -1;
     private int ssl_port = -1;
+
+    private ThreadPoolExecutor request_pool;
+    private ConnectionThreadFactory connection_threads;
+    private int accept_threads = 2;
+    private String banner = "Jelectrum";
+    private java.util.concurrent.atomic.AtomicLong slow_clients_dropped = new java.util.concurrent.atomic.AtomicLong(0L);
     
     public StratumServer(Jelectrum jelectrum, Config config)
     {
@@ -55,7 +74,7 @@ public class StratumServer
 
         //config.require("tcp_port");
         //config.require("ssl_port");
-        if (config.isSet("ssl_port"))
+        if (config.isSet("ssl_port") || config.isSet("websocket_ssl_port"))
         {
             config.require("keystore_path");
             config.require("keystore_store_password");
@@ -65,6 +84,32 @@ public class StratumServer
         {
           global_rate_limit = new RateLimit(config.getDouble("global_rate_limit"), 2.0);
         }
+        if (config.isSet("ip_rate_limit"))
+        {
+          ip_rate_limit = config.getDouble("ip_rate_limit");
+        }
+
+        // Shared by all connections for running requests.
+        // When it is backed up the connection's own thread runs the request.
+        int request_threads = 16;
+        if (config.isSet("request_threads"))
+        {
+          request_threads = config.getInt("request_threads");
+        }
+        request_pool = new ThreadPoolExecutor(
+          request_threads,
+          request_threads,
+          2, TimeUnit.DAYS,
+          new LinkedBlockingQueue<Runnable>(request_threads * 64),
+          new DaemonThreadFactory(),
+          new ThreadPoolExecutor.CallerRunsPolicy());
+
+        connection_threads = new ConnectionThreadFactory(
+          config.getBoolean("stratum_virtual_threads"), jelectrum.getEventLog());
+        if (config.isSet("accept_threads"))
+        {
+          accept_threads = config.getInt("accept_threads");
+        }
         server = this;
 
     }
@@ -74,6 +119,11 @@ public class StratumServer
     {
         getEventLog().log("SERVER START");
 
+        if (config.get("banner_file") != null)
+        {
+          banner = new String(java.nio.file.Files.readAllBytes(new java.io.File(config.get("banner_file")).toPath()));
+        }
+
         new TimeoutThread().start();
 
         if (config.isSet("tcp_port"))
@@ -84,12 +134,11 @@ public class StratumServer
                 int port = Integer.parseInt(s);
                 if (tcp_port < 0) tcp_port = port;
 
-                ServerSocket ss = new ServerSocket(port, 256);
-                ss.setReuseAddress(true);
-                new ListenThread(ss).start();
+                listen(ServerSocketFactory.getDefault(), port);
             }
         }
-        if (config.isSet("ssl_port"))
+        SSLServerSocketFactory ssf = null;
+        if (config.isSet("ssl_port") || config.isSet("websocket_ssl_port"))
         {
             char ks_pass[] = config.get("keystore_store_password").toCharArray();
             char key_pass[] = config.get("keystore_key_password").toCharArray();
@@ -100,8 +149,10 @@ public class StratumServer
             kmf.init(ks, key_pass);
             SSLContext sc = SSLContext.getInstance("TLS");
             sc.init(kmf.getKeyManagers(), null, null);
-            SSLServerSocketFactory ssf = sc.getServerSocketFactory();
-    
+            ssf = sc.getServerSocketFactory();
+        }
+        if (config.isSet("ssl_port"))
+        {
             List<String> ports = config.getList("ssl_port");
 
             for(String s : ports)
@@ -109,14 +160,87 @@ public class StratumServer
                 int port = Integer.parseInt(s);
                 if (ssl_port < 0) ssl_port = port;
 
-                SSLServerSocket ss = (SSLServerSocket)ssf.createServerSocket(port, 256);
-                ss.setWantClientAuth(false);
-                ss.setNeedClientAuth(false);
+                listen(ssf, port);
+            }
+        }
+        if (config.isSet("websocket_port"))
+        {
+            for(String s : config.getList("websocket_port"))
+            {
+                listen(ServerSocketFactory.getDefault(), Integer.parseInt(s), true);
+            }
+        }
+        if (config.isSet("websocket_ssl_port"))
+        {
+            for(String s : config.getList("websocket_ssl_port"))
+            {
+                listen(ssf, Integer.parseInt(s), true);
+            }
+        }
+
+    }
+
+    /**
+     * Starts accept_threads accept loops on the port.  Where SO_REUSEPORT
+     * works each loop gets its own socket and the kernel spreads new
+     * connections between them, otherwise they all accept on one socket.
+     */
+    private void listen(ServerSocketFactory factory, int port)
+        throws java.io.IOException
+    {
+        listen(factory, port, false);
+    }
+
+    private void listen(ServerSocketFactory factory, int port, boolean websocket)
+        throws java.io.IOException
+    {
+        ServerSocket shared = null;
+        for(int i=0; i<accept_threads; i++)
+        {
+            ServerSocket ss = shared;
+            if (ss == null)
+            {
+                ss = factory.createServerSocket();
+                if (ss instanceof SSLServerSocket)
+                {
+                    ((SSLServerSocket)ss).setWantClientAuth(false);
+                    ((SSLServerSocket)ss).setNeedClientAuth(false);
+                }
                 ss.setReuseAddress(true);
-                new ListenThread(ss).start();
+                boolean reuse_port = (accept_threads > 1) && setReusePort(ss);
+                ss.bind(new InetSocketAddress(port), 256);
+                if (!reuse_port) shared = ss;
             }
+            new ListenThread(ss, i, websocket).start();
+        }
+    }
+
+    /**
+     * SO_REUSEPORT is Java 9+, so found by reflection.  Returns false where
+     * the JDK or OS doesn't have it.
+     */
+    private static boolean setReusePort(ServerSocket ss)
+    {
+        try
+        {
+            Object opt = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            java.util.Set<?> supported = (java.util.Set<?>) ServerSocket.class.getMethod("supportedOptions").invoke(ss);
+            if (!supported.contains(opt)) return false;
+            ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(ss, opt, Boolean.TRUE);
+            return true;
         }
+        catch(Exception e)
+        {
+            return false;
+        }
+    }
 
+    /**
+     * Read from banner_file once at startup
+     */
+    public String getBanner()
+    {
+        return banner;
     }
 
     public Config getConfig()
@@ -142,20 +266,103 @@ public class StratumServer
         return event_log;
     }
 
+    public ThreadPoolExecutor getRequestPool() {return request_pool;}
+    public ConnectionThreadFactory getConnectionThreads() {return connection_threads;}
+
+    public void connectionClosed(StratumConnection conn)
+    {
+      conn_map.remove(conn.getId(), conn);
+      if (conn.releaseIpRateLimit()) releaseIpRateLimit(conn.getInetAddress());
+    }
+
+    public void noteSlowClientDropped()
+    {
+      slow_clients_dropped.incrementAndGet();
+    }
+
+    /**
+     * Outbound queue depth over all connections
+     */
+    public String getQueueSummary()
+    {
+      long conn_count = 0;
+      long total_bytes = 0;
+      long total_msgs = 0;
+      long max_bytes = 0;
+      long collapsed = 0;
+      for(StratumConnection conn : conn_map.values())
+      {
+        conn_count++;
+        OutboundQueue q = conn.getOutQueue();
+        long b = q.getQueuedBytes();
+        total_bytes += b;
+        total_msgs += q.size();
+        max_bytes = Math.max(max_bytes, b);
+        collapsed += q.getCollapsedCount();
+      }
+      return String.format("Out queues: %d connections %d messages %d bytes (max %d) collapsed %d slow dropped %d",
+        conn_count, total_msgs, total_bytes, max_bytes, collapsed, slow_clients_dropped.get());
+    }
+
     public int getTcpPort() {return tcp_port;}
     public int getSslPort() {return ssl_port;}
 
     public int getConnectionCount()
     {
-      synchronized(conn_map)
+      return conn_map.size();
+    }
+    public boolean applyGlobalRateLimit(double bytes)
+    {
+      return RateLimit.sleepNanos(reserveGlobalRate(bytes));
+    }
+
+    /**
+     * Nanoseconds to wait before sending, see RateLimit.reserve()
+     */
+    public long reserveGlobalRate(double bytes)
+    {
+      if (global_rate_limit == null) return 0L;
+      return global_rate_limit.reserve(bytes);
+    }
+
+    /**
+     * Shared by all connections from one address, null if there is no per IP limit.
+     * Each one taken must be given back with releaseIpRateLimit().
+     */
+    public RateLimit acquireIpRateLimit(java.net.InetAddress addr)
+    {
+      if (ip_rate_limit <= 0.0) return null;
+      synchronized(ip_rate_limits)
       {
-        return conn_map.size();
+        IpRateLimit ipl = ip_rate_limits.get(addr);
+        if (ipl == null)
+        {
+          ipl = new IpRateLimit(new RateLimit(ip_rate_limit, 2.0));
+          ip_rate_limits.put(addr, ipl);
+        }
+        ipl.connections++;
+        return ipl.limit;
       }
     }
-    public boolean applyGlobalRateLimit(double bytes)
+
+    public void releaseIpRateLimit(java.net.InetAddress addr)
+    {
+      synchronized(ip_rate_limits)
+      {
+        IpRateLimit ipl = ip_rate_limits.get(addr);
+        if (ipl != null) ipl.connections--;
+      }
+    }
+
+    private static class IpRateLimit
     {
-      if (global_rate_limit == null) return false;
-      return global_rate_limit.waitForRate(bytes);
+      final RateLimit limit;
+      int connections;
+
+      IpRateLimit(RateLimit limit)
+      {
+        this.limit = limit;
+      }
     }
 
     public NetworkParameters getNetworkParameters(){return network_params;}
@@ -165,36 +372,45 @@ public class StratumServer
         this.network_params = network_params;
     }
 
+    /**
+     * Only accepts, everything else about the connection happens on its own threads
+     */
+    private void openConnection(Socket sock, boolean websocket)
+        throws java.io.IOException
+    {
+        sock.setTcpNoDelay(true);
+
+        String id = UUID.randomUUID().toString();
+
+        StratumConnection conn = new StratumConnection(jelectrum, server, sock, id, websocket);
+        conn_map.put(id, conn);
+        idle_wheel.schedule(id, conn.getLastNetworkAction() + max_idle_time);
+        if (!conn.isOpen()) conn_map.remove(id);
+    }
+
     public class ListenThread extends Thread
     {
         private ServerSocket ss;
-        public ListenThread(ServerSocket ss)
+        private boolean websocket;
+        public ListenThread(ServerSocket ss, int n, boolean websocket)
         {
             this.ss = ss;
-            setName("Listen:"+ss);
+            this.websocket = websocket;
+            setName("Listen:"+ss+":"+n);
         }
 
 
         public void run()
         {
             System.out.println("Listening on port: " + ss);
-            jelectrum.getEventLog().log("Listening on port: " + ss);
+            jelectrum.getEventLog().log("Listening on port: " + ss + " (" + getName() + ")");
 
 
                 while(ss.isBound())
                 {
                     try
                     {
-                        Socket sock = ss.accept();
-                        sock.setTcpNoDelay(true);
-
-                        String id = UUID.randomUUID().toString();
-
-                        StratumConnection conn = new StratumConnection(jelectrum, server, sock, id);
-                        synchronized(conn_map)
-                        {
-                            conn_map.put(id, conn);
-                        }
+                        openConnection(ss.accept(), websocket);
                     }
                     catch(Throwable t)
                     {
@@ -216,33 +432,56 @@ public class StratumServer
 
         public void run()
         {   
+            int pass = 0;
             while(true)
             {   
-                LinkedList<Map.Entry<String, StratumConnection> > lst= new LinkedList<Map.Entry<String, StratumConnection> >();
-
-                synchronized(conn_map)
+                if (pass % 4 == 0)
                 {
-                    lst.addAll(conn_map.entrySet());
+                    jelectrum.getEventLog().log(getQueueSummary());
+                    for(String line : StratumConnection.getMethodRegistry().getSummary())
+                    {
+                        jelectrum.getEventLog().log(line);
+                    }
                 }
-                for(Map.Entry<String, StratumConnection> me : lst)
+                pass++;
+
+                // Only the connections that were due to go idle about now.
+                // Ones that have been active since go back in for their new deadline.
+                ArrayList<String> due = new ArrayList<String>();
+                long now = System.nanoTime();
+                idle_wheel.advance(now, due);
+                for(String id : due)
                 {
-                    if (!me.getValue().isOpen())
+                    StratumConnection conn = conn_map.get(id);
+                    if (conn == null) continue;
+                    if (!conn.isOpen())
+                    {
+                        conn_map.remove(id);
+                        continue;
+                    }
+                    long deadline = conn.getLastNetworkAction() + max_idle_time;
+                    if (deadline <= now)
+                    {
+                        jelectrum.getEventLog().log(id + " - Closing connection due to inactivity");
+
+                        conn.close();
+                        conn_map.remove(id);
+                    }
+                    else
                     {
-                        synchronized(conn_map)
-                        {
-                            conn_map.remove(me.getKey());
-                        }
+                        idle_wheel.schedule(id, deadline);
                     }
-                    if (me.getValue().getLastNetworkAction() + max_idle_time < System.nanoTime())
+                }
+
+                // A full bucket nobody holds is the same as a new one
+                synchronized(ip_rate_limits)
+                {
+                    java.util.Iterator<IpRateLimit> it = ip_rate_limits.values().iterator();
+                    while(it.hasNext())
                     {
-                        jelectrum.getEventLog().log(me.getKey() + " - Closing connection due to inactivity");
-
-                        me.getValue().close();
-                        synchronized(conn_map)
-                        {
-                            conn_map.remove(me.getKey());
-                        }
-                    }   
+                        IpRateLimit ipl = it.next();
+                        if ((ipl.connections <= 0) && (ipl.limit.isIdle())) it.remove();
+                    }
                 }
 
                 try{Thread.sleep(15000);}catch(Throwable t){}
@@ -0,0 +1,143 @@
+package jelectrum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+
+/**
+ * Writes a reply result straight to UTF-8 bytes with a Jackson generator,
+ * instead of building an org.json tree, turning it into a String and then
+ * encoding that.
+ *
+ * Each thread reuses its own output buffer, so the only allocation that
+ * survives is the final byte array that gets queued.  Use one per result,
+ * on one thread:
+ *
+ *   StreamingReply r = new StreamingReply();
+ *   JsonGenerator gen = r.getGenerator();
+ *   ...write one value...
+ *   byte[] result = r.finish();
+ */
+public class StreamingReply
+{
+  private static final JsonFactory json_factory = new JsonFactory();
+
+  // Don't hang on to buffers from the occasional giant reply
+  private static final int MAX_POOLED_SIZE = 1048576;
+
+  private static final ThreadLocal<ByteArrayBuilder> pooled_buffer = new ThreadLocal<ByteArrayBuilder>();
+  private static final ThreadLocal<char[]> pooled_chars = new ThreadLocal<char[]>();
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private ByteArrayBuilder buff;
+  private JsonGenerator gen;
+
+  public StreamingReply()
+  {
+    buff = pooled_buffer.get();
+    if (buff == null)
+    {
+      buff = new ByteArrayBuilder(4096);
+    }
+    else
+    {
+      pooled_buffer.set(null);
+    }
+
+    try
+    {
+      gen = json_factory.createGenerator(buff);
+    }
+    catch(IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public JsonGenerator getGenerator()
+  {
+    return gen;
+  }
+
+  /**
+   * Returns the encoded result and gives the buffer back to the pool.
+   * The StreamingReply can't be used after this.
+   */
+  public byte[] finish()
+  {
+    try
+    {
+      gen.close();
+    }
+    catch(IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    byte[] result = buff.toByteArray();
+
+    if (result.length <= MAX_POOLED_SIZE)
+    {
+      buff.reset();
+      pooled_buffer.set(buff);
+    }
+    buff = null;
+    gen = null;
+    return result;
+  }
+
+  /**
+   * Writes the data as a lower case hex string value without making
+   * a String of it first
+   */
+  public static void writeHex(JsonGenerator gen, byte[] data)
+    throws IOException
+  {
+    int len = data.length * 2 + 2;
+    char[] chars = pooled_chars.get();
+    if ((chars == null) || (chars.length < len))
+    {
+      chars = new char[len];
+      if (len <= MAX_POOLED_SIZE) pooled_chars.set(chars);
+    }
+    chars[0]='"';
+    int p = 1;
+    for(byte b : data)
+    {
+      chars[p++] = HEX[(b >> 4) & 0xf];
+      chars[p++] = HEX[b & 0xf];
+    }
+    chars[p++]='"';
+    gen.writeRawValue(chars, 0, p);
+  }
+
+  /**
+   * Same but hex encodes the buffer's remaining bytes in place, so a
+   * mapped file region never gets copied into a byte array
+   */
+  public static void writeHex(JsonGenerator gen, ByteBuffer data)
+    throws IOException
+  {
+    int len = data.remaining() * 2 + 2;
+    char[] chars = pooled_chars.get();
+    if ((chars == null) || (chars.length < len))
+    {
+      chars = new char[len];
+      if (len <= MAX_POOLED_SIZE) pooled_chars.set(chars);
+    }
+    chars[0]='"';
+    int p = 1;
+    for(int i=data.position(); i<data.limit(); i++)
+    {
+      byte b = data.get(i);
+      chars[p++] = HEX[(b >> 4) & 0xf];
+      chars[p++] = HEX[b & 0xf];
+    }
+    chars[p++]='"';
+    gen.writeRawValue(chars, 0, p);
+  }
+
+}
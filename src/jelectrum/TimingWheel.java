@@ -0,0 +1,98 @@
+package jelectrum;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel.  Scheduling is O(1) and each tick only looks at the
+ * items in one slot, instead of scanning everything that has a timeout.
+ *
+ * Items whose deadline is more than one turn of the wheel away just sit
+ * in their slot until the turn they are due.  schedule() is safe from any
+ * thread, advance() should only be called from one.
+ */
+public class TimingWheel<T>
+{
+  private final long tick_ns;
+  private final ConcurrentLinkedQueue<Entry<T>>[] slots;
+  private volatile long current_tick;
+
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long tick_ns, int slot_count, long now_ns)
+  {
+    this.tick_ns = tick_ns;
+    slots = (ConcurrentLinkedQueue<Entry<T>>[]) new ConcurrentLinkedQueue<?>[slot_count];
+    for(int i=0; i<slot_count; i++) slots[i] = new ConcurrentLinkedQueue<Entry<T>>();
+    current_tick = tickFor(now_ns);
+  }
+
+  public void schedule(T item, long deadline_ns)
+  {
+    // Anything already due goes in the next slot to be looked at
+    long tick = Math.max(tickFor(deadline_ns), current_tick);
+    slots[slotFor(tick)].add(new Entry<T>(item, deadline_ns));
+  }
+
+  /**
+   * Moves the wheel up to now and adds every item whose deadline has passed to out
+   */
+  public void advance(long now_ns, Collection<T> out)
+  {
+    long now_tick = tickFor(now_ns);
+    // No need to go around more than once
+    long start = Math.max(current_tick, now_tick - slots.length + 1);
+
+    ArrayList<Entry<T>> later = new ArrayList<>();
+    for(long t = start; t <= now_tick; t++)
+    {
+      ConcurrentLinkedQueue<Entry<T>> slot = slots[slotFor(t)];
+      int n = slot.size();
+      for(int i=0; i<n; i++)
+      {
+        Entry<T> e = slot.poll();
+        if (e == null) break;
+        if (e.deadline_ns <= now_ns) out.add(e.item);
+        else later.add(e);
+      }
+      for(Entry<T> e : later) slot.add(e);
+      later.clear();
+    }
+    // The current tick isn't over, it gets looked at again next time
+    current_tick = now_tick;
+  }
+
+  public long getTickNanos()
+  {
+    return tick_ns;
+  }
+
+  /**
+   * Rounds down, nanoTime can be negative
+   */
+  private long tickFor(long ns)
+  {
+    if (ns >= 0) return ns / tick_ns;
+    return -((-ns + tick_ns - 1) / tick_ns);
+  }
+
+  private int slotFor(long tick)
+  {
+    int s = (int)(tick % slots.length);
+    if (s < 0) s += slots.length;
+    return s;
+  }
+
+  private static class Entry<T>
+  {
+    final T item;
+    final long deadline_ns;
+
+    Entry(T item, long deadline_ns)
+    {
+      this.item = item;
+      this.deadline_ns = deadline_ns;
+    }
+  }
+
+}
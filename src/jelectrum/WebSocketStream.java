@@ -0,0 +1,362 @@
+package jelectrum;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Server side of RFC 6455 over a blocking socket, so a browser can speak
+ * the Electrum protocol without a proxy.
+ *
+ * After the upgrade handshake, getInputStream() gives the payload of each
+ * client message followed by a newline, which is what LineFramer expects.
+ * Newlines inside a message (pretty printed JSON) become spaces, which
+ * JSON doesn't care about, so one message is always one line.
+ * getOutputStream() sends whatever was written since the last flush() as
+ * one text frame, without the trailing newline.  Pings are answered and
+ * close frames are echoed.
+ */
+public class WebSocketStream
+{
+  public static final String ACCEPT_GUID="258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  public static final int MAX_HANDSHAKE=16384;
+  public static final String VERSION="13";
+
+  private static final int OP_CONTINUATION=0;
+  private static final int OP_TEXT=1;
+  private static final int OP_BINARY=2;
+  private static final int OP_CLOSE=8;
+  private static final int OP_PING=9;
+  private static final int OP_PONG=10;
+
+  private final InputStream raw_in;
+  private final OutputStream raw_out;
+  private final long max_frame;
+
+  // Frames from the reader (pong, close) and the writer go out whole
+  private final ReentrantLock write_lock = new ReentrantLock();
+
+  public WebSocketStream(InputStream raw_in, OutputStream raw_out, long max_frame)
+  {
+    this.raw_in = new BufferedInputStream(raw_in);
+    this.raw_out = raw_out;
+    this.max_frame = max_frame;
+  }
+
+  /**
+   * Reads the HTTP upgrade request and answers it.  Anything that isn't
+   * a websocket upgrade gets a 400 and an IOException, an upgrade for a
+   * version other than 13 gets a 426 naming the one we speak.
+   */
+  public void handshake()
+    throws IOException
+  {
+    HashMap<String, String> headers = new HashMap<>();
+    String request_line = readHttpHead(headers);
+
+    String upgrade = headers.get("upgrade");
+    String key = headers.get("sec-websocket-key");
+    if ((!request_line.startsWith("GET ")) || (upgrade == null) || (!upgrade.toLowerCase().contains("websocket")) || (key == null))
+    {
+      writeRaw("HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+      throw new IOException("Not a websocket upgrade: " + request_line);
+    }
+    String version = headers.get("sec-websocket-version");
+    if ((version == null) || (!version.equals(VERSION)))
+    {
+      writeRaw("HTTP/1.1 426 Upgrade Required\r\nSec-WebSocket-Version: " + VERSION + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+      throw new IOException("Unsupported websocket version: " + version);
+    }
+
+    writeRaw("HTTP/1.1 101 Switching Protocols\r\n"
+      + "Upgrade: websocket\r\n"
+      + "Connection: Upgrade\r\n"
+      + "Sec-WebSocket-Accept: " + getAcceptKey(key) + "\r\n\r\n");
+  }
+
+  public static String getAcceptKey(String key)
+  {
+    try
+    {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] h = md.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+      return Base64.encodeBase64String(h);
+    }
+    catch(java.security.NoSuchAlgorithmException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public InputStream getInputStream()
+  {
+    return new FrameInputStream();
+  }
+
+  public OutputStream getOutputStream()
+  {
+    return new FrameOutputStream();
+  }
+
+  /**
+   * Returns the request line, header names go into the map lower case
+   */
+  private String readHttpHead(HashMap<String, String> headers)
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    String request_line = null;
+    int total = 0;
+    while(true)
+    {
+      int c = raw_in.read();
+      if (c < 0) throw new EOFException("Closed during websocket handshake");
+      total++;
+      if (total > MAX_HANDSHAKE) throw new IOException("Websocket handshake too long");
+      if (c == '\r') continue;
+      if (c != '\n')
+      {
+        sb.append((char)c);
+        continue;
+      }
+
+      String line = sb.toString();
+      sb.setLength(0);
+      if (request_line == null)
+      {
+        request_line = line;
+        continue;
+      }
+      if (line.length() == 0) return request_line;
+
+      int colon = line.indexOf(':');
+      if (colon > 0)
+      {
+        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+    }
+  }
+
+  private void writeRaw(String s)
+    throws IOException
+  {
+    write_lock.lock();
+    try
+    {
+      raw_out.write(s.getBytes(StandardCharsets.US_ASCII));
+      raw_out.flush();
+    }
+    finally
+    {
+      write_lock.unlock();
+    }
+  }
+
+  private void writeFrame(int opcode, byte[] payload, int len)
+    throws IOException
+  {
+    byte[] header = new byte[10];
+    int h = 0;
+    header[h++] = (byte)(0x80 | opcode);
+    if (len < 126)
+    {
+      header[h++] = (byte)len;
+    }
+    else if (len < 65536)
+    {
+      header[h++] = (byte)126;
+      header[h++] = (byte)(len >>> 8);
+      header[h++] = (byte)len;
+    }
+    else
+    {
+      header[h++] = (byte)127;
+      for(int i=7; i>=0; i--) header[h++] = (byte)(((long)len) >>> (8*i));
+    }
+
+    write_lock.lock();
+    try
+    {
+      raw_out.write(header, 0, h);
+      raw_out.write(payload, 0, len);
+      raw_out.flush();
+    }
+    finally
+    {
+      write_lock.unlock();
+    }
+  }
+
+  private void readFully(byte[] b, int len)
+    throws IOException
+  {
+    int r = 0;
+    while(r < len)
+    {
+      int n = raw_in.read(b, r, len - r);
+      if (n < 0) throw new EOFException();
+      r += n;
+    }
+  }
+
+  private class FrameInputStream extends InputStream
+  {
+    private final byte[] head = new byte[8];
+    private final byte[] mask = new byte[4];
+    private final byte[] control = new byte[125];
+    private final byte[] one = new byte[1];
+
+    private long remaining;
+    private int mask_pos;
+    private boolean fin;
+    private boolean end_of_message;
+    private boolean closed;
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      int n = read(one, 0, 1);
+      if (n < 0) return -1;
+      return one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (len == 0) return 0;
+      while(true)
+      {
+        if (closed) return -1;
+        if (remaining > 0)
+        {
+          int n = raw_in.read(b, off, (int)Math.min(len, remaining));
+          if (n < 0) return -1;
+          for(int i=0; i<n; i++)
+          {
+            b[off+i] ^= mask[mask_pos & 3];
+            if (b[off+i] == '\n') b[off+i] = ' ';
+            mask_pos++;
+          }
+          remaining -= n;
+          if ((remaining == 0) && fin) end_of_message = true;
+          return n;
+        }
+        if (end_of_message)
+        {
+          end_of_message = false;
+          b[off] = '\n';
+          return 1;
+        }
+        if (!readFrameHeader()) return -1;
+      }
+    }
+
+    /**
+     * Handles control frames itself, returns once a data frame is next
+     * or false if the client closed
+     */
+    private boolean readFrameHeader()
+      throws IOException
+    {
+      int b0 = raw_in.read();
+      if (b0 < 0) return false;
+      readFully(head, 1);
+      int b1 = head[0] & 0xFF;
+
+      boolean frame_fin = (b0 & 0x80) != 0;
+      int opcode = b0 & 0x0F;
+      long len = b1 & 0x7F;
+      if (len == 126)
+      {
+        readFully(head, 2);
+        len = ((head[0] & 0xFFL) << 8) | (head[1] & 0xFFL);
+      }
+      else if (len == 127)
+      {
+        readFully(head, 8);
+        len = 0;
+        for(int i=0; i<8; i++) len = (len << 8) | (head[i] & 0xFFL);
+      }
+      if ((b1 & 0x80) == 0) throw new IOException("Unmasked websocket frame from client");
+      readFully(mask, 4);
+      mask_pos = 0;
+
+      if (opcode >= OP_CLOSE)
+      {
+        if (len > control.length) throw new IOException("Websocket control frame too long");
+        readFully(control, (int)len);
+        for(int i=0; i<len; i++) control[i] ^= mask[i & 3];
+
+        if (opcode == OP_CLOSE)
+        {
+          writeFrame(OP_CLOSE, control, (int)Math.min(len, 2));
+          closed = true;
+          return false;
+        }
+        if (opcode == OP_PING)
+        {
+          writeFrame(OP_PONG, control, (int)len);
+        }
+        return true;
+      }
+
+      if ((opcode != OP_TEXT) && (opcode != OP_BINARY) && (opcode != OP_CONTINUATION))
+      {
+        throw new IOException("Unknown websocket opcode " + opcode);
+      }
+      if ((len < 0) || (len > max_frame)) throw new IOException("Websocket frame too long: " + len);
+      remaining = len;
+      fin = frame_fin;
+      if ((len == 0) && fin) end_of_message = true;
+      return true;
+    }
+  }
+
+  private class FrameOutputStream extends OutputStream
+  {
+    private final ExposedBuffer buffer = new ExposedBuffer();
+
+    @Override
+    public void write(int b)
+    {
+      buffer.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      buffer.write(b, off, len);
+    }
+
+    @Override
+    public void flush()
+      throws IOException
+    {
+      byte[] b = buffer.getBuffer();
+      int len = buffer.size();
+      if ((len > 0) && (b[len-1] == '\n')) len--;
+      if (len > 0) writeFrame(OP_TEXT, b, len);
+      buffer.reset();
+    }
+  }
+
+  /**
+   * Lets a frame be written straight from the buffer without a copy
+   */
+  private static class ExposedBuffer extends ByteArrayOutputStream
+  {
+    public byte[] getBuffer() { return buf; }
+  }
+
+}
@@ -0,0 +1,279 @@
+package jelectrum;
+
+import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Minimal pure java ZeroMQ SUB socket, enough to listen to the bitcoind
+ * zmqpubhashblock / zmqpubrawtx publishers.
+ *
+ * Speaks ZMTP/3.0 with the NULL security mechanism over a plain TCP socket.
+ * Reconnects forever if the publisher goes away.
+ *
+ * bitcoind sends each notification as three frames: topic, body and a
+ * 4 byte little endian sequence number.
+ */
+public class ZmqSubscriber extends Thread
+{
+  public static final List<String> BITCOIND_TOPICS = Arrays.asList("hashblock", "rawtx");
+
+  public static final int FLAG_MORE = 0x01;
+  public static final int FLAG_LONG = 0x02;
+  public static final int FLAG_COMMAND = 0x04;
+
+  private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+  private static final long RECONNECT_DELAY = 5000L;
+
+  private EventLog event_log;
+  private String host;
+  private int port;
+  private Collection<String> topics;
+  private Listener listener;
+
+  private volatile boolean connected;
+
+  public ZmqSubscriber(EventLog event_log, String url, Collection<String> topics, Listener listener)
+  {
+    this.event_log = event_log;
+    this.topics = topics;
+    this.listener = listener;
+
+    String s = url;
+    if (s.startsWith("tcp://")) s = s.substring(6);
+    int colon = s.lastIndexOf(':');
+    if (colon < 0) throw new RuntimeException("ZMQ url must be tcp://host:port - " + url);
+    host = s.substring(0, colon);
+    port = Integer.parseInt(s.substring(colon+1));
+
+    setName("ZmqSubscriber/" + host + ":" + port);
+    setDaemon(true);
+  }
+
+  public boolean isConnected()
+  {
+    return connected;
+  }
+
+  public void run()
+  {
+    while(true)
+    {
+      try
+      {
+        runConnection();
+      }
+      catch(Throwable t)
+      {
+        event_log.alarm("ZmqSubscriber " + host + ":" + port + " error - " + t);
+      }
+      connected=false;
+      try
+      {
+        Thread.sleep(RECONNECT_DELAY);
+      }
+      catch(InterruptedException e)
+      {
+        return;
+      }
+    }
+  }
+
+  private void runConnection()
+    throws IOException
+  {
+    Socket sock = new Socket();
+    try
+    {
+      sock.connect(new InetSocketAddress(host, port), 15000);
+      sock.setTcpNoDelay(true);
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+      OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+
+      writeGreeting(out, false);
+      out.flush();
+      readGreeting(in);
+
+      writeCommand(out, "READY", "Socket-Type", "SUB");
+      out.flush();
+
+      Frame ready = readFrame(in);
+      if ((!ready.isCommand()) || (!"READY".equals(ready.getCommandName())))
+      {
+        throw new IOException("Expected READY from publisher");
+      }
+
+      for(String topic : topics)
+      {
+        byte[] t = topic.getBytes(StandardCharsets.US_ASCII);
+        byte[] sub = new byte[t.length + 1];
+        sub[0] = 1;
+        System.arraycopy(t, 0, sub, 1, t.length);
+        writeFrame(out, 0, sub);
+      }
+      out.flush();
+
+      connected=true;
+      event_log.log("ZmqSubscriber connected to " + host + ":" + port + " for " + topics);
+
+      ArrayList<byte[]> parts = new ArrayList<>();
+      while(true)
+      {
+        Frame f = readFrame(in);
+        if (f.isCommand()) continue;
+
+        parts.add(f.getBody());
+        if (!f.hasMore())
+        {
+          String topic = new String(parts.get(0), StandardCharsets.US_ASCII);
+          byte[] body = new byte[0];
+          if (parts.size() > 1) body = parts.get(1);
+          listener.onZmqMessage(topic, body);
+          parts.clear();
+        }
+      }
+    }
+    finally
+    {
+      sock.close();
+    }
+  }
+
+  public static void writeGreeting(OutputStream out, boolean as_server)
+    throws IOException
+  {
+    byte[] g = new byte[64];
+    g[0] = (byte)0xff;
+    g[9] = 0x7f;
+    g[10] = 3;
+    g[11] = 0;
+    byte[] mech = "NULL".getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(mech, 0, g, 12, mech.length);
+    g[32] = (byte)(as_server ? 1 : 0);
+    out.write(g);
+  }
+
+  public static void readGreeting(DataInputStream in)
+    throws IOException
+  {
+    byte[] g = new byte[64];
+    in.readFully(g);
+    if (((g[0] & 0xff) != 0xff) || ((g[9] & 0x01) != 0x01))
+    {
+      throw new IOException("Not a ZMTP peer");
+    }
+    if (g[10] < 3)
+    {
+      throw new IOException("Unsupported ZMTP version: " + g[10]);
+    }
+    String mech = new String(g, 12, 20, StandardCharsets.US_ASCII).trim();
+    if (!mech.startsWith("NULL"))
+    {
+      throw new IOException("Unsupported ZMTP mechanism: " + mech);
+    }
+  }
+
+  public static void writeCommand(OutputStream out, String name, String prop_name, String prop_value)
+    throws IOException
+  {
+    byte[] n = name.getBytes(StandardCharsets.US_ASCII);
+    byte[] pn = prop_name.getBytes(StandardCharsets.US_ASCII);
+    byte[] pv = prop_value.getBytes(StandardCharsets.US_ASCII);
+
+    byte[] body = new byte[1 + n.length + 1 + pn.length + 4 + pv.length];
+    int p = 0;
+    body[p++] = (byte)n.length;
+    System.arraycopy(n, 0, body, p, n.length); p+=n.length;
+    body[p++] = (byte)pn.length;
+    System.arraycopy(pn, 0, body, p, pn.length); p+=pn.length;
+    body[p++] = (byte)(pv.length >>> 24);
+    body[p++] = (byte)(pv.length >>> 16);
+    body[p++] = (byte)(pv.length >>> 8);
+    body[p++] = (byte)pv.length;
+    System.arraycopy(pv, 0, body, p, pv.length);
+
+    writeFrame(out, FLAG_COMMAND, body);
+  }
+
+  public static void writeFrame(OutputStream out, int flags, byte[] body)
+    throws IOException
+  {
+    if (body.length > 255)
+    {
+      out.write(flags | FLAG_LONG);
+      long len = body.length;
+      for(int i=7; i>=0; i--)
+      {
+        out.write((int)(len >>> (i*8)));
+      }
+    }
+    else
+    {
+      out.write(flags);
+      out.write(body.length);
+    }
+    out.write(body);
+  }
+
+  public static Frame readFrame(DataInputStream in)
+    throws IOException
+  {
+    int flags = in.readUnsignedByte();
+    long len;
+    if ((flags & FLAG_LONG) != 0)
+    {
+      len = in.readLong();
+    }
+    else
+    {
+      len = in.readUnsignedByte();
+    }
+    if ((len < 0) || (len > MAX_FRAME_SIZE))
+    {
+      throw new IOException("ZMTP frame too large: " + len);
+    }
+    byte[] body = new byte[(int)len];
+    in.readFully(body);
+    return new Frame(flags, body);
+  }
+
+  public static class Frame
+  {
+    private int flags;
+    private byte[] body;
+
+    public Frame(int flags, byte[] body)
+    {
+      this.flags = flags;
+      this.body = body;
+    }
+
+    public boolean isCommand() { return (flags & FLAG_COMMAND) != 0; }
+    public boolean hasMore() { return (flags & FLAG_MORE) != 0; }
+    public byte[] getBody() { return body; }
+
+    public String getCommandName()
+    {
+      if (body.length == 0) return null;
+      int n = body[0] & 0xff;
+      return new String(body, 1, Math.min(n, body.length-1), StandardCharsets.US_ASCII);
+    }
+  }
+
+  public interface Listener
+  {
+    public void onZmqMessage(String topic, byte[] body);
+  }
+
+}
@@ -43,7 +43,6 @@ public abstract class DB implements DBFace
     protected Map<String, StoredBlock> special_block_store_map;
     protected Map<Sha256Hash, String> block_saved_map;
     protected Map<String, Object> special_object_map;
-    protected Map<Integer, String> header_chunk_map;
     protected Map<Integer, Sha256Hash> height_map;
     protected DBMapMutationSet utxo_simple_map;
     protected DBMapMutationSet pubkey_to_tx_map;
@@ -87,7 +86,7 @@ public abstract class DB implements DBFace
         //block_map = new ObjectConversionMap<>(OBJECT, openMap("block_map"));
         block_saved_map = new ObjectConversionMap<>(STRING, openMap("block_saved_map"));
         special_object_map = new ObjectConversionMap<>(OBJECT, openMap("special_object_map"));
-        header_chunk_map = new ObjectConversionMap<>(STRING, openMap("header_chunk_map"));
+        //header_chunk_map = new ObjectConversionMap<>(STRING, openMap("header_chunk_map"));
         height_map = new ObjectConversionMap<>(SHA256HASH, openMap("height_map"));
         //utxo_simple_map = new ObjectConversionMap<>(STRING, openMap("utxo_simple_map"));
 
@@ -112,7 +111,6 @@ public abstract class DB implements DBFace
     public Map<String, StoredBlock> getSpecialBlockStoreMap() { return special_block_store_map; }
     public Map<Sha256Hash, String> getBlockSavedMap() { return block_saved_map; }
     public Map<String, Object> getSpecialObjectMap() { return special_object_map; }
-    public Map<Integer, String> getHeaderChunkMap() {return header_chunk_map; }
     public Map<Integer, Sha256Hash> getHeightMap() {return height_map; }
     public DBMapMutationSet getUtxoSimpleMap() {return utxo_simple_map; }
 
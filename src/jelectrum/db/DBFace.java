@@ -33,7 +33,6 @@ public interface DBFace
     //public Map<Sha256Hash, SerializedBlock> getBlockMap();
     public Map<Sha256Hash, String> getBlockSavedMap();
     public Map<String, Object> getSpecialObjectMap();
-    public Map<Integer, String> getHeaderChunkMap();
     public Map<Integer, Sha256Hash> getHeightMap();
     public DBMapMutationSet getUtxoSimpleMap();
 
@@ -0,0 +1,92 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import jelectrum.HeaderFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+public class HeaderFileTest
+{
+  private static byte[] header(int height)
+  {
+    byte[] h = new byte[80];
+    for(int i=0; i<80; i++) h[i] = (byte)(height * 7 + i + 1);
+    return h;
+  }
+
+  private static File tempFile()
+    throws Exception
+  {
+    File f = File.createTempFile("headers", ".dat");
+    f.delete();
+    f.deleteOnExit();
+    return f;
+  }
+
+  @Test
+  public void testPutAndReload()
+    throws Exception
+  {
+    File f = tempFile();
+    HeaderFile hf = new HeaderFile(f);
+    Assert.assertEquals(0, hf.getCount());
+    for(int i=0; i<5000; i++) hf.put(i, header(i));
+    Assert.assertEquals(5000, hf.getCount());
+    hf.force();
+
+    HeaderFile again = new HeaderFile(f);
+    Assert.assertEquals(5000, again.getCount());
+    Assert.assertArrayEquals(header(4321), again.getHeader(4321));
+    Assert.assertNull(again.getHeader(5000));
+  }
+
+  @Test
+  public void testRange()
+    throws Exception
+  {
+    HeaderFile hf = new HeaderFile(tempFile());
+    for(int i=0; i<3000; i++) hf.put(i, header(i));
+
+    ByteBuffer b = hf.getRange(2016, 2016);
+    Assert.assertEquals((3000 - 2016) * 80, b.remaining());
+    byte[] first = new byte[80];
+    b.get(first);
+    Assert.assertArrayEquals(header(2016), first);
+    Assert.assertNull(hf.getRange(3000, 10));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Assert.assertEquals(160L, hf.transferTo(10, 2, Channels.newChannel(out)));
+    byte[] raw = out.toByteArray();
+    Assert.assertEquals(header(11)[0], raw[80]);
+  }
+
+  @Test
+  public void testTruncate()
+    throws Exception
+  {
+    File f = tempFile();
+    HeaderFile hf = new HeaderFile(f);
+    for(int i=0; i<100; i++) hf.put(i, header(i));
+    hf.truncate(90);
+    Assert.assertEquals(90, hf.getCount());
+    hf.put(90, header(1000));
+    hf.force();
+
+    HeaderFile again = new HeaderFile(f);
+    Assert.assertEquals(91, again.getCount());
+    Assert.assertArrayEquals(header(1000), again.getHeader(90));
+  }
+
+  @Test(expected=java.io.IOException.class)
+  public void testNoGaps()
+    throws Exception
+  {
+    HeaderFile hf = new HeaderFile(tempFile());
+    hf.put(1, header(1));
+  }
+
+}
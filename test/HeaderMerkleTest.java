@@ -0,0 +1,96 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import jelectrum.HeaderMerkle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Sha256Hash;
+
+public class HeaderMerkleTest
+{
+  private static byte[] leaf(int i)
+  {
+    return Sha256Hash.hashTwice(new byte[]{(byte)i, (byte)(i >> 8), (byte)(i >> 16)});
+  }
+
+  /** The plain way, a level at a time, duplicating the odd node */
+  private static byte[] naiveRoot(List<byte[]> hashes)
+  {
+    List<byte[]> lvl = new ArrayList<>(hashes);
+    while(lvl.size() > 1)
+    {
+      if (lvl.size() % 2 == 1) lvl.add(lvl.get(lvl.size() - 1));
+      List<byte[]> up = new ArrayList<>();
+      for(int i=0; i<lvl.size(); i+=2) up.add(HeaderMerkle.hashPair(lvl.get(i), lvl.get(i+1)));
+      lvl = up;
+    }
+    return lvl.get(0);
+  }
+
+  private static byte[] rootFromBranch(byte[] leaf, int index, List<byte[]> branch)
+  {
+    byte[] h = leaf;
+    for(byte[] sib : branch)
+    {
+      if ((index & 1) == 0) h = HeaderMerkle.hashPair(h, sib);
+      else h = HeaderMerkle.hashPair(sib, h);
+      index >>= 1;
+    }
+    return h;
+  }
+
+  @Test
+  public void testPrefixRootsAndBranches()
+  {
+    HeaderMerkle m = new HeaderMerkle();
+    List<byte[]> leaves = new ArrayList<>();
+    for(int i=0; i<300; i++)
+    {
+      leaves.add(leaf(i));
+      m.add(leaf(i));
+    }
+    Assert.assertEquals(300, m.size());
+
+    for(int len=1; len<=300; len++)
+    {
+      byte[] root = naiveRoot(leaves.subList(0, len));
+      Assert.assertArrayEquals(root, m.getRoot(len));
+      for(int i=0; i<len; i+=7)
+      {
+        List<byte[]> branch = m.getBranch(i, len);
+        Assert.assertEquals(HeaderMerkle.getDepth(len), branch.size());
+        Assert.assertArrayEquals(root, rootFromBranch(leaves.get(i), i, branch));
+      }
+    }
+  }
+
+  @Test
+  public void testTruncate()
+  {
+    HeaderMerkle m = new HeaderMerkle();
+    List<byte[]> leaves = new ArrayList<>();
+    for(int i=0; i<100; i++) m.add(leaf(i));
+    m.truncate(61);
+    Assert.assertEquals(61, m.size());
+    for(int i=0; i<61; i++) leaves.add(leaf(i));
+    for(int i=0; i<20; i++)
+    {
+      leaves.add(leaf(1000 + i));
+      m.add(leaf(1000 + i));
+    }
+    Assert.assertArrayEquals(naiveRoot(leaves), m.getRoot(81));
+    Assert.assertArrayEquals(naiveRoot(leaves.subList(0, 64)), m.getRoot(64));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testPastEnd()
+  {
+    HeaderMerkle m = new HeaderMerkle();
+    m.add(leaf(0));
+    m.getRoot(2);
+  }
+
+}
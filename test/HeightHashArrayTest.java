@@ -0,0 +1,98 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import jelectrum.HeightHashArray;
+
+import java.io.File;
+
+import org.bitcoinj.core.Sha256Hash;
+
+public class HeightHashArrayTest
+{
+  private static Sha256Hash hash(int i)
+  {
+    return Sha256Hash.of(new byte[]{(byte)i, (byte)(i >> 8), (byte)(i >> 16)});
+  }
+
+  private static File tempFile()
+    throws Exception
+  {
+    File f = File.createTempFile("heights", ".dat");
+    f.delete();
+    f.deleteOnExit();
+    return f;
+  }
+
+  @Test
+  public void testSetAndReload()
+    throws Exception
+  {
+    File f = tempFile();
+    HeightHashArray a = new HeightHashArray(f);
+    Assert.assertEquals(0, a.size());
+    Assert.assertNull(a.get(0));
+
+    for(int i=0; i<5000; i++) a.set(i, hash(i));
+    Assert.assertEquals(5000, a.size());
+    Assert.assertEquals(hash(1234), a.get(1234));
+    Assert.assertNull(a.get(5000));
+
+    HeightHashArray again = new HeightHashArray(f);
+    Assert.assertEquals(5000, again.size());
+    Assert.assertEquals(hash(4999), again.get(4999));
+  }
+
+  @Test
+  public void testReorg()
+    throws Exception
+  {
+    File f = tempFile();
+    HeightHashArray a = new HeightHashArray(f);
+    for(int i=0; i<100; i++) a.set(i, hash(i));
+
+    a.set(98, hash(1098));
+    a.truncate(99);
+    Assert.assertEquals(99, a.size());
+    Assert.assertEquals(hash(1098), a.get(98));
+    Assert.assertEquals(hash(97), a.get(97));
+
+    HeightHashArray again = new HeightHashArray(f);
+    Assert.assertEquals(99, again.size());
+    Assert.assertEquals(hash(1098), again.get(98));
+  }
+
+  @Test
+  public void testSetAll()
+    throws Exception
+  {
+    File f = tempFile();
+    HeightHashArray a = new HeightHashArray(f);
+    java.util.ArrayList<Sha256Hash> lst = new java.util.ArrayList<>();
+    for(int i=0; i<3000; i++) lst.add(hash(i));
+    a.setAll(0, lst);
+    Assert.assertEquals(3000, a.size());
+
+    // Replace the last three and extend by two in one go
+    lst.clear();
+    for(int i=0; i<5; i++) lst.add(hash(10000 + i));
+    a.setAll(2997, lst);
+    Assert.assertEquals(3002, a.size());
+    Assert.assertEquals(hash(2996), a.get(2996));
+    Assert.assertEquals(hash(10000), a.get(2997));
+    Assert.assertEquals(hash(10004), a.get(3001));
+
+    HeightHashArray again = new HeightHashArray(f);
+    Assert.assertEquals(3002, again.size());
+    Assert.assertEquals(hash(10004), again.get(3001));
+  }
+
+  @Test(expected=java.io.IOException.class)
+  public void testNoGaps()
+    throws Exception
+  {
+    HeightHashArray a = new HeightHashArray(tempFile());
+    a.set(1, hash(1));
+  }
+
+}
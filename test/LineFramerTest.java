@@ -0,0 +1,103 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import jelectrum.LineFramer;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class LineFramerTest
+{
+  /** Hands back at most a few bytes per read, like a slow socket */
+  private static class TrickleStream extends ByteArrayInputStream
+  {
+    public TrickleStream(byte[] b) { super(b); }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len)
+    {
+      return super.read(b, off, Math.min(len, 3));
+    }
+  }
+
+  private static InputStream stream(String s)
+  {
+    return new TrickleStream(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testLines()
+    throws Exception
+  {
+    LineFramer f = new LineFramer(stream("{\"id\":1}\r\n\nsecond\nlast"), 1000);
+    Assert.assertTrue(f.nextLine());
+    Assert.assertEquals("{\"id\":1}", f.getLineString());
+    Assert.assertEquals(8, f.getLineLength());
+    Assert.assertTrue(f.nextLine());
+    Assert.assertEquals("", f.getLineString());
+    Assert.assertTrue(f.nextLine());
+    Assert.assertEquals("second", f.getLineString());
+    Assert.assertTrue(f.nextLine());
+    Assert.assertEquals("last", f.getLineString());
+    Assert.assertFalse(f.nextLine());
+  }
+
+  @Test
+  public void testLongLinesGrowAndShrink()
+    throws Exception
+  {
+    StringBuilder sb = new StringBuilder();
+    StringBuilder big = new StringBuilder();
+    for(int i=0; i<50000; i++) big.append((char)('a' + i % 26));
+    for(int i=0; i<5; i++)
+    {
+      sb.append(big).append('\n');
+      for(int j=0; j<2000; j++) sb.append("short " + j + "\n");
+    }
+
+    LineFramer f = new LineFramer(new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)), 60000);
+    for(int i=0; i<5; i++)
+    {
+      Assert.assertTrue(f.nextLine());
+      Assert.assertEquals(big.toString(), f.getLineString());
+      for(int j=0; j<2000; j++)
+      {
+        Assert.assertTrue(f.nextLine());
+        Assert.assertEquals("short " + j, f.getLineString());
+      }
+    }
+    Assert.assertFalse(f.nextLine());
+    Assert.assertTrue(f.getBuffer().length < 60000);
+  }
+
+  @Test(expected=LineFramer.LineTooLongException.class)
+  public void testTooLong()
+    throws Exception
+  {
+    StringBuilder sb = new StringBuilder("ok\n");
+    for(int i=0; i<20000; i++) sb.append('x');
+    sb.append('\n');
+
+    LineFramer f = new LineFramer(stream(sb.toString()), 10000);
+    Assert.assertTrue(f.nextLine());
+    Assert.assertEquals("ok", f.getLineString());
+    f.nextLine();
+  }
+
+  @Test
+  public void testAtLimit()
+    throws Exception
+  {
+    StringBuilder sb = new StringBuilder();
+    for(int i=0; i<10000; i++) sb.append('x');
+    sb.append("\r\n");
+
+    LineFramer f = new LineFramer(stream(sb.toString()), 10000);
+    Assert.assertTrue(f.nextLine());
+    Assert.assertEquals(10000, f.getLineLength());
+    Assert.assertFalse(f.nextLine());
+  }
+
+}
@@ -0,0 +1,222 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import java.util.Random;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import jelectrum.Hash32Table;
+import jelectrum.MemPoolStore;
+import jelectrum.FeeHistogram;
+
+import org.bitcoinj.core.Sha256Hash;
+import com.google.protobuf.ByteString;
+import com.google.common.collect.HashMultimap;
+
+public class MemPoolStoreTest
+{
+
+  @Test
+  public void testTableChurn()
+  {
+    Random rnd = new Random(5);
+    Hash32Table table = new Hash32Table(16);
+    HashMap<ByteString, Integer> ref = new HashMap<>();
+    ArrayList<ByteString> keys = new ArrayList<>();
+
+    for(int i=0; i<50000; i++)
+    {
+      if ((keys.size() > 0) && (rnd.nextInt(3) == 0))
+      {
+        ByteString k = keys.remove(rnd.nextInt(keys.size()));
+        byte[] b = k.toByteArray();
+        int v = table.remove(Hash32Table.readLong(b,0), Hash32Table.readLong(b,8), Hash32Table.readLong(b,16), Hash32Table.readLong(b,24));
+        Assert.assertEquals((int)ref.remove(k), v);
+      }
+      else
+      {
+        ByteString k = ByteString.copyFrom(TestUtil.randomBytes(32));
+        byte[] b = k.toByteArray();
+        table.put(Hash32Table.readLong(b,0), Hash32Table.readLong(b,8), Hash32Table.readLong(b,16), Hash32Table.readLong(b,24), i);
+        ref.put(k, i);
+        keys.add(k);
+      }
+    }
+    Assert.assertEquals(ref.size(), table.size());
+    for(Map.Entry<ByteString, Integer> me : ref.entrySet())
+    {
+      Assert.assertEquals((int)me.getValue(), table.get(me.getKey()));
+    }
+    Assert.assertEquals(-1, table.get(TestUtil.randomBytes(32)));
+  }
+
+  @Test
+  public void testStoreMatchesMultimap()
+  {
+    Random rnd = new Random(7);
+    MemPoolStore store = new MemPoolStore();
+    HashMultimap<ByteString, Sha256Hash> ref = HashMultimap.create();
+    HashMap<Sha256Hash, List<ByteString>> ref_tx = new HashMap<>();
+
+    ArrayList<ByteString> scripthashes = new ArrayList<>();
+    for(int i=0; i<500; i++) scripthashes.add(ByteString.copyFrom(TestUtil.randomBytes(32)));
+
+    ArrayList<Sha256Hash> txs = new ArrayList<>();
+    for(int i=0; i<20000; i++)
+    {
+      if ((txs.size() > 0) && (rnd.nextInt(3) == 0))
+      {
+        Sha256Hash tx = txs.remove(rnd.nextInt(txs.size()));
+        HashSet<ByteString> changed = new HashSet<>();
+        Assert.assertTrue(store.removeTx(tx, changed));
+        Assert.assertEquals(new HashSet<ByteString>(ref_tx.remove(tx)), changed);
+        for(ByteString s : changed) ref.remove(s, tx);
+      }
+      else
+      {
+        Sha256Hash tx = TestUtil.randomHash();
+        ArrayList<ByteString> lst = new ArrayList<>();
+        int n = rnd.nextInt(5);
+        for(int j=0; j<n; j++) lst.add(scripthashes.get(rnd.nextInt(scripthashes.size())));
+
+        Assert.assertTrue(store.addTx(tx, lst, 0L, 0));
+        Assert.assertFalse(store.addTx(tx, lst, 0L, 0));
+        ref_tx.put(tx, lst);
+        for(ByteString s : lst) ref.put(s, tx);
+        txs.add(tx);
+      }
+    }
+
+    Assert.assertEquals(txs.size(), store.size());
+    for(ByteString s : scripthashes)
+    {
+      HashSet<Sha256Hash> found = new HashSet<>();
+      int n = store.getTxForScriptHash(s, found);
+      Assert.assertEquals(ref.get(s), found);
+      Assert.assertEquals(ref.get(s).size(), n);
+      Assert.assertEquals(n, store.getTxCountForScriptHash(s));
+    }
+    for(Sha256Hash tx : txs) Assert.assertTrue(store.containsTx(tx));
+  }
+
+  @Test
+  public void testMarkPass()
+  {
+    MemPoolStore store = new MemPoolStore();
+    ArrayList<Sha256Hash> txs = new ArrayList<>();
+    for(int i=0; i<100; i++)
+    {
+      Sha256Hash tx = TestUtil.randomHash();
+      store.addTx(tx, new ArrayList<ByteString>(), 0L, 0);
+      txs.add(tx);
+    }
+
+    store.startMarkPass();
+    for(int i=0; i<90; i++) Assert.assertTrue(store.mark(txs.get(i)));
+    Assert.assertFalse(store.mark(TestUtil.randomHash()));
+
+    List<Sha256Hash> gone = store.getUnmarked();
+    Assert.assertEquals(new HashSet<Sha256Hash>(txs.subList(90, 100)), new HashSet<Sha256Hash>(gone));
+  }
+
+  @Test
+  public void testFeeHistogram()
+  {
+    MemPoolStore store = new MemPoolStore();
+    ArrayList<Sha256Hash> txs = new ArrayList<>();
+    // 500 txs of 1000 vbytes at 50 sat/vbyte, 2000 at 5 sat/vbyte
+    for(int i=0; i<2500; i++)
+    {
+      Sha256Hash tx = TestUtil.randomHash();
+      long fee = (i < 500) ? 50000L : 5000L;
+      store.addTx(tx, new ArrayList<ByteString>(), fee, 1000);
+      txs.add(tx);
+    }
+    FeeHistogram hist = store.getFeeHistogram();
+    Assert.assertEquals(2500000L, hist.getTotalVSize());
+
+    List<double[]> compact = hist.getCompactHistogram();
+    long total = 0;
+    double last_rate = Double.MAX_VALUE;
+    for(double[] pair : compact)
+    {
+      Assert.assertTrue(pair[0] < last_rate);
+      last_rate = pair[0];
+      total += (long)pair[1];
+    }
+    Assert.assertEquals(2500000L, total);
+
+    // First block is 500k at 50 then 500k at 5
+    double r1 = hist.estimateFeeRate(1);
+    Assert.assertTrue(r1 > 4.5 && r1 <= 5.0);
+    Assert.assertEquals(0.0, hist.estimateFeeRate(3), 0.0);
+
+    store.removeTx(txs.get(0), null);
+    Assert.assertEquals(2499000L, hist.getTotalVSize());
+  }
+
+  @Test
+  public void testSnapshot()
+    throws Exception
+  {
+    MemPoolStore store = new MemPoolStore();
+    ArrayList<ByteString> scripthashes = new ArrayList<>();
+    for(int i=0; i<50; i++) scripthashes.add(ByteString.copyFrom(TestUtil.randomBytes(32)));
+
+    Random rnd = new Random(11);
+    ArrayList<Sha256Hash> txs = new ArrayList<>();
+    for(int i=0; i<1000; i++)
+    {
+      Sha256Hash tx = TestUtil.randomHash();
+      ArrayList<ByteString> lst = new ArrayList<>();
+      for(int j=0; j<3; j++) lst.add(scripthashes.get(rnd.nextInt(scripthashes.size())));
+      store.addTx(tx, lst, 1000L + i, 250);
+      txs.add(tx);
+    }
+    for(int i=0; i<100; i++) store.removeTx(txs.get(i), null);
+
+    MemPoolStore loaded = new MemPoolStore();
+    Assert.assertEquals(900, loaded.loadSnapshot(store.getSnapshot()));
+    Assert.assertEquals(store.size(), loaded.size());
+    Assert.assertEquals(store.getFeeHistogram().getTotalFee(), loaded.getFeeHistogram().getTotalFee());
+    Assert.assertFalse(loaded.containsTx(txs.get(0)));
+    Assert.assertTrue(loaded.containsTx(txs.get(500)));
+
+    for(ByteString s : scripthashes)
+    {
+      HashSet<Sha256Hash> a = new HashSet<>();
+      HashSet<Sha256Hash> b = new HashSet<>();
+      store.getTxForScriptHash(s, a);
+      loaded.getTxForScriptHash(s, b);
+      Assert.assertEquals(a, b);
+    }
+  }
+
+  @Test
+  public void testSnapshotWideTx()
+    throws Exception
+  {
+    MemPoolStore store = new MemPoolStore();
+    ArrayList<ByteString> lst = new ArrayList<>();
+    for(int i=0; i<70000; i++) lst.add(ByteString.copyFrom(TestUtil.randomBytes(32)));
+    Sha256Hash wide = TestUtil.randomHash();
+    Sha256Hash narrow = TestUtil.randomHash();
+    store.addTx(wide, lst, 5000L, 1000);
+    store.addTx(narrow, lst.subList(0, 1), 100L, 200);
+
+    MemPoolStore loaded = new MemPoolStore();
+    Assert.assertEquals(2, loaded.loadSnapshot(store.getSnapshot()));
+    Assert.assertTrue(loaded.containsTx(wide));
+    Assert.assertTrue(loaded.containsTx(narrow));
+
+    HashSet<Sha256Hash> b = new HashSet<>();
+    loaded.getTxForScriptHash(lst.get(69999), b);
+    Assert.assertEquals(1, b.size());
+    Assert.assertTrue(b.contains(wide));
+  }
+
+}
@@ -0,0 +1,99 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import jelectrum.MethodRegistry;
+import jelectrum.StratumConnection;
+
+public class MethodRegistryTest
+{
+  private static class NamedHandler implements MethodRegistry.Handler
+  {
+    public void handle(StratumConnection conn, StratumConnection.Request req) {}
+  }
+
+  @Test
+  public void testProtocolRanges()
+  {
+    MethodRegistry reg = new MethodRegistry();
+    MethodRegistry.Handler old_h = new NamedHandler();
+    MethodRegistry.Handler new_h = new NamedHandler();
+    MethodRegistry.Handler any_h = new NamedHandler();
+
+    reg.register("blockchain.transaction.get", null, "1.1", old_h);
+    reg.register("blockchain.transaction.get", "1.1", null, new_h);
+    reg.register("server.banner", any_h);
+
+    Assert.assertSame(old_h, reg.lookup("blockchain.transaction.get", "0.10"));
+    Assert.assertSame(new_h, reg.lookup("blockchain.transaction.get", "1.1"));
+    Assert.assertSame(new_h, reg.lookup("blockchain.transaction.get", "1.2"));
+    Assert.assertSame(any_h, reg.lookup("server.banner", "0.10"));
+    Assert.assertNull(reg.lookup("server.nope", "1.1"));
+  }
+
+  @Test
+  public void testCompareProto()
+  {
+    Assert.assertTrue(MethodRegistry.compareProto("1.10", "1.4") > 0);
+    Assert.assertTrue(MethodRegistry.compareProto("0.10", "1.1") < 0);
+    Assert.assertEquals(0, MethodRegistry.compareProto("1.4", "1.4.0"));
+    Assert.assertTrue(MethodRegistry.compareProto("1.4.1", "1.4") > 0);
+    Assert.assertEquals(0, MethodRegistry.compareProto("junk", "0"));
+
+    MethodRegistry reg = new MethodRegistry();
+    MethodRegistry.Handler h = new NamedHandler();
+    reg.register("blockchain.block.headers", "1.4", null, h);
+    Assert.assertSame(h, reg.lookup("blockchain.block.headers", "1.10"));
+    Assert.assertNull(reg.lookup("blockchain.block.headers", "1.3"));
+  }
+
+  @Test
+  public void testSelectProto()
+  {
+    Assert.assertEquals("1.4", StratumConnection.selectProto("1.1", "1.4"));
+    Assert.assertEquals("1.3", StratumConnection.selectProto("1.2", "1.3"));
+    Assert.assertEquals("1.2", StratumConnection.selectProto("1.2", "1.2"));
+    Assert.assertEquals("0.10", StratumConnection.selectProto("1.0", "1.0"));
+    Assert.assertNull(StratumConnection.selectProto("1.5", "1.6"));
+  }
+
+  @Test
+  public void testStats()
+  {
+    MethodRegistry reg = new MethodRegistry();
+    reg.register("server.banner", new NamedHandler());
+
+    MethodRegistry.MethodStats stats = reg.getStats("server.banner");
+    for(int i=0; i<99; i++) stats.record(50000L, 10, false);
+    stats.record(20000000L, 10, true);
+    stats.recordOut(123);
+
+    Assert.assertEquals(100L, stats.getCount());
+    Assert.assertEquals(1L, stats.getErrorCount());
+    Assert.assertEquals(1000L, stats.getBytesIn());
+    Assert.assertEquals(123L, stats.getBytesOut());
+    Assert.assertEquals(64L, stats.getLatencyPercentile(0.5));
+    Assert.assertEquals(32768L, stats.getLatencyPercentile(1.0));
+
+    Assert.assertSame(reg.getStats(null), reg.getStats("server.nope"));
+    Assert.assertEquals(1, reg.getSummary().size());
+  }
+
+  @Test
+  public void testServerMethodsRegistered()
+  {
+    MethodRegistry reg = StratumConnection.getMethodRegistry();
+    Assert.assertNotNull(reg.lookup("blockchain.scripthash.get_history", "1.1"));
+    Assert.assertNotNull(reg.lookup("blockchain.numblocks.subscribe", "0.10"));
+    Assert.assertNull(reg.lookup("blockchain.numblocks.subscribe", "1.1"));
+    Assert.assertNotNull(reg.lookup("blockchain.block.headers", "1.4"));
+    Assert.assertNull(reg.lookup("blockchain.block.headers", "1.1"));
+    Assert.assertNull(reg.lookup("blockchain.address.get_history", "1.4"));
+    Assert.assertNotNull(reg.lookup("blockchain.headers.subscribe", "1.4"));
+    Assert.assertNotNull(reg.lookup("server.ping", "1.4"));
+    Assert.assertNull(reg.lookup("server.ping", "1.1"));
+    Assert.assertNotNull(reg.lookup("blockchain.transaction.id_from_pos", "1.4"));
+    Assert.assertNotSame(reg.lookup("blockchain.transaction.get", "1.1"), reg.lookup("blockchain.transaction.get", "1.4"));
+  }
+
+}
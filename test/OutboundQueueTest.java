@@ -0,0 +1,97 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import jelectrum.EncodedMessage;
+import jelectrum.OutboundQueue;
+
+import org.json.JSONObject;
+
+public class OutboundQueueTest
+{
+  private static EncodedMessage makeMsg(String key, int n)
+    throws Exception
+  {
+    JSONObject o = new JSONObject();
+    o.put("method", "blockchain.scripthash.subscribe");
+    o.put("n", n);
+    o.put("pad", "0123456789012345678901234567890123456789012345678901234567890123456789");
+    return new EncodedMessage(o, key);
+  }
+
+  @Test
+  public void testCollapseKeepsLatest()
+    throws Exception
+  {
+    OutboundQueue q = new OutboundQueue(1000L, 60000L);
+    for(int i=0; i<100; i++)
+    {
+      Assert.assertTrue(q.offer(makeMsg("sh" + (i % 3), i)));
+    }
+    Assert.assertTrue(q.getQueuedBytes() <= 1000L);
+    Assert.assertTrue(q.getCollapsedCount() > 0);
+
+    // Each key's newest message must still be there
+    boolean[] found = new boolean[3];
+    EncodedMessage m;
+    while((m = q.poll(0L)) != null)
+    {
+      int n = new JSONObject(m.toString()).getInt("n");
+      if (n >= 97) found[n % 3] = true;
+    }
+    Assert.assertTrue(found[0] && found[1] && found[2]);
+    Assert.assertEquals(0L, q.getQueuedBytes());
+  }
+
+  @Test
+  public void testSlowClientDropped()
+    throws Exception
+  {
+    OutboundQueue q = new OutboundQueue(1000L, 50L);
+    boolean ok = true;
+    int i = 0;
+    for(; i<12; i++) ok = q.offer(makeMsg(null, i));
+    Assert.assertTrue(ok);
+
+    Thread.sleep(100);
+    Assert.assertFalse(q.offer(makeMsg(null, i)));
+  }
+
+  @Test
+  public void testHardLimit()
+    throws Exception
+  {
+    OutboundQueue q = new OutboundQueue(1000L, 60000L);
+    boolean ok = true;
+    for(int i=0; i<100 && ok; i++) ok = q.offer(makeMsg(null, i));
+    Assert.assertFalse(ok);
+    Assert.assertTrue(q.getQueuedBytes() > 4000L);
+  }
+
+  @Test
+  public void testBigMessageGetsGrace()
+    throws Exception
+  {
+    OutboundQueue q = new OutboundQueue(1000L, 60000L);
+    JSONObject o = new JSONObject();
+    StringBuilder sb = new StringBuilder();
+    for(int i=0; i<6000; i++) sb.append('x');
+    o.put("result", sb.toString());
+    Assert.assertTrue(q.offer(new EncodedMessage(o)));
+    Assert.assertTrue(q.offer(makeMsg(null, 0)));
+    Assert.assertNotNull(q.poll(0L));
+    Assert.assertNotNull(q.poll(0L));
+    Assert.assertNull(q.poll(0L));
+  }
+
+  @Test
+  public void testPollTimeout()
+    throws Exception
+  {
+    OutboundQueue q = new OutboundQueue(1000L, 60000L);
+    long t = System.currentTimeMillis();
+    Assert.assertNull(q.poll(50L));
+    Assert.assertTrue(System.currentTimeMillis() - t >= 40L);
+  }
+
+}
@@ -0,0 +1,69 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jelectrum.RateLimit;
+
+public class RateLimitTest
+{
+
+  @Test
+  public void testBurstThenWait()
+  {
+    // 1000 bytes/sec with a one second burst
+    RateLimit rl = new RateLimit(1000.0, 1.0);
+    Assert.assertEquals(0L, rl.reserve(500));
+    Assert.assertEquals(0L, rl.reserve(400));
+
+    long wait = rl.reserve(1000);
+    Assert.assertTrue("wait " + wait, wait > 800000000L && wait <= 900000000L);
+    Assert.assertFalse(rl.isIdle());
+  }
+
+  @Test
+  public void testIdleRefills()
+    throws Exception
+  {
+    RateLimit rl = new RateLimit(100000.0, 0.05);
+    rl.reserve(10000);
+    Assert.assertFalse(rl.isIdle());
+    Thread.sleep(200);
+    Assert.assertTrue(rl.isIdle());
+    Assert.assertEquals(0L, rl.reserve(1000));
+  }
+
+  @Test
+  public void testConcurrentReserveAddsUp()
+    throws Exception
+  {
+    final RateLimit rl = new RateLimit(1e6, 0.0);
+    final AtomicLong max_wait = new AtomicLong(0L);
+    Thread[] threads = new Thread[8];
+    for(int t=0; t<threads.length; t++)
+    {
+      threads[t] = new Thread()
+      {
+        public void run()
+        {
+          for(int i=0; i<1000; i++)
+          {
+            long w = rl.reserve(100);
+            synchronized(max_wait)
+            {
+              if (w > max_wait.get()) max_wait.set(w);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for(Thread t : threads) t.join();
+
+    // 800k bytes at 1mb/sec, the last reservation waits most of 0.8 seconds
+    Assert.assertTrue("max wait " + max_wait.get(), max_wait.get() > 600000000L);
+    Assert.assertTrue("max wait " + max_wait.get(), max_wait.get() <= 800000000L);
+  }
+
+}
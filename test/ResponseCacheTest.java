@@ -0,0 +1,137 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import java.util.Collections;
+
+import jelectrum.EncodedMessage;
+import jelectrum.ResponseCache;
+
+import org.json.JSONObject;
+import org.json.JSONArray;
+import com.google.protobuf.ByteString;
+
+public class ResponseCacheTest
+{
+  private static final String HISTORY="blockchain.scripthash.get_history";
+  private static final String TX_GET="blockchain.transaction.get";
+
+  private static JSONObject makeReply(Object id, Object result)
+    throws Exception
+  {
+    JSONObject reply = new JSONObject();
+    reply.put("id", id);
+    reply.put("jsonrpc", "2.0");
+    reply.put("result", result);
+    return reply;
+  }
+
+  private static JSONArray params(String p)
+  {
+    JSONArray a = new JSONArray();
+    a.put(p);
+    return a;
+  }
+
+  @Test
+  public void testHitUsesRequestId()
+    throws Exception
+  {
+    ResponseCache cache = new ResponseCache(1000000L, ResponseCache.DEFAULT_METHODS.keySet());
+    ByteString sh = ByteString.copyFrom(TestUtil.randomBytes(32));
+
+    ResponseCache.Key key = cache.getKey(HISTORY, params("aa"), sh);
+    Assert.assertNull(cache.get(key, 1));
+
+    JSONArray result = new JSONArray();
+    result.put("tx1");
+    EncodedMessage sent = cache.put(key, makeReply(1, result));
+    Assert.assertEquals(1, new JSONObject(sent.toString()).getInt("id"));
+
+    EncodedMessage hit = cache.get(cache.getKey(HISTORY, params("aa"), sh), "abc");
+    Assert.assertNotNull(hit);
+    JSONObject o = new JSONObject(hit.toString());
+    Assert.assertEquals("abc", o.getString("id"));
+    Assert.assertEquals("tx1", o.getJSONArray("result").getString(0));
+    Assert.assertEquals('\n', hit.getBytes()[hit.size()-1]);
+
+    Assert.assertEquals(1L, cache.getHitCount());
+    Assert.assertEquals(1L, cache.getMissCount());
+  }
+
+  @Test
+  public void testInvalidation()
+    throws Exception
+  {
+    ResponseCache cache = new ResponseCache(1000000L, ResponseCache.DEFAULT_METHODS.keySet());
+    ByteString sh1 = ByteString.copyFrom(TestUtil.randomBytes(32));
+    ByteString sh2 = ByteString.copyFrom(TestUtil.randomBytes(32));
+
+    cache.put(cache.getKey(HISTORY, params("1"), sh1), makeReply(1, "a"));
+    cache.put(cache.getKey(HISTORY, params("2"), sh2), makeReply(1, "b"));
+    cache.put(cache.getKey(TX_GET, params("t"), null), makeReply(1, "c"));
+    Assert.assertEquals(3, cache.size());
+
+    cache.invalidateScriptHashes(Collections.singletonList(sh1));
+    Assert.assertNull(cache.get(cache.getKey(HISTORY, params("1"), sh1), 1));
+    Assert.assertNotNull(cache.get(cache.getKey(HISTORY, params("2"), sh2), 1));
+
+    cache.invalidateReorg();
+    Assert.assertNull(cache.get(cache.getKey(HISTORY, params("2"), sh2), 1));
+    Assert.assertNotNull(cache.get(cache.getKey(TX_GET, params("t"), null), 1));
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testStaleResultNotStored()
+    throws Exception
+  {
+    ResponseCache cache = new ResponseCache(1000000L, ResponseCache.DEFAULT_METHODS.keySet());
+    ByteString sh = ByteString.copyFrom(TestUtil.randomBytes(32));
+
+    ResponseCache.Key key = cache.getKey(HISTORY, params("1"), sh);
+    cache.invalidateScriptHashes(Collections.singletonList(sh));
+    cache.put(key, makeReply(1, "old"));
+    Assert.assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testOtherScriptHashStillStored()
+    throws Exception
+  {
+    ResponseCache cache = new ResponseCache(1000000L, ResponseCache.DEFAULT_METHODS.keySet());
+    ByteString sh1 = ByteString.copyFrom(TestUtil.randomBytes(32));
+    ByteString sh2 = ByteString.copyFrom(TestUtil.randomBytes(32));
+
+    ResponseCache.Key key = cache.getKey(HISTORY, params("1"), sh1);
+    cache.invalidateScriptHashes(Collections.singletonList(sh2));
+    cache.put(key, makeReply(1, "a"));
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testByteBound()
+    throws Exception
+  {
+    ResponseCache cache = new ResponseCache(16000L, ResponseCache.DEFAULT_METHODS.keySet());
+    StringBuilder sb = new StringBuilder();
+    for(int i=0; i<500; i++) sb.append('x');
+
+    for(int i=0; i<100; i++)
+    {
+      cache.put(cache.getKey(TX_GET, params("" + i), null), makeReply(1, sb.toString()));
+      Assert.assertTrue(cache.getTotalBytes() <= 16000L);
+    }
+    Assert.assertNotNull(cache.get(cache.getKey(TX_GET, params("99"), null), 1));
+    Assert.assertNull(cache.get(cache.getKey(TX_GET, params("0"), null), 1));
+  }
+
+  @Test
+  public void testMethodEnablement()
+  {
+    ResponseCache cache = new ResponseCache(1000000L, Collections.singletonList(TX_GET));
+    Assert.assertNull(cache.getKey(HISTORY, params("1"), ByteString.copyFrom(TestUtil.randomBytes(32))));
+    Assert.assertNotNull(cache.getKey(TX_GET, params("1"), null));
+  }
+
+}
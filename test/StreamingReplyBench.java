@@ -0,0 +1,38 @@
+
+import jelectrum.EncodedMessage;
+
+/**
+ * Not part of the unit run, prints the org.json and streaming history
+ * replies side by side.  ant bench_streaming
+ */
+public class StreamingReplyBench
+{
+  public static void main(String args[])
+    throws Exception
+  {
+    int size = 5000;
+    int rounds = 50;
+    if (args.length > 0) size = Integer.parseInt(args[0]);
+    if (args.length > 1) rounds = Integer.parseInt(args[1]);
+
+    String[] hashes = StreamingReplyTest.makeHashes(size);
+
+    for(int warm=0; warm<2; warm++)
+    {
+      long t1 = System.nanoTime();
+      long json_bytes = 0;
+      for(int i=0; i<rounds; i++) json_bytes += StreamingReplyTest.jsonHistory(i, hashes).length;
+      long t2 = System.nanoTime();
+      long stream_bytes = 0;
+      for(int i=0; i<rounds; i++) stream_bytes += EncodedMessage.forResult(i, StreamingReplyTest.streamHistory(hashes)).size();
+      long t3 = System.nanoTime();
+
+      if (warm == 1)
+      {
+        System.out.println(String.format("History of %d, org.json: %.2f ms/reply streaming: %.2f ms/reply (%d vs %d bytes)",
+          size, (t2-t1) / 1e6 / rounds, (t3-t2) / 1e6 / rounds, json_bytes / rounds, stream_bytes / rounds));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import java.nio.charset.StandardCharsets;
+
+import jelectrum.ElectrumNotifier;
+import jelectrum.EncodedMessage;
+import jelectrum.StreamingReply;
+import jelectrum.Util;
+
+import org.json.JSONObject;
+import org.json.JSONArray;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+public class StreamingReplyTest
+{
+  private static final int HISTORY_SIZE=5000;
+
+  public static String[] makeHashes(int n)
+  {
+    String[] hashes = new String[n];
+    for(int i=0; i<n; i++) hashes[i] = TestUtil.randomHash().toString();
+    return hashes;
+  }
+
+  // Every third one is in the mempool with no fee known
+  private static int height(int i) { return (i % 3 == 0) ? 0 : 400000 + i; }
+  private static long fee(int i) { return (i % 3 == 0) ? -1L : 1000L * i; }
+
+  /**
+   * As ElectrumNotifier.sendAddressHistory encodes it
+   */
+  public static byte[] streamHistory(String[] hashes)
+    throws Exception
+  {
+    StreamingReply sr = new StreamingReply();
+    JsonGenerator gen = sr.getGenerator();
+    gen.writeStartArray();
+    for(int i=0; i<hashes.length; i++)
+    {
+      ElectrumNotifier.writeHistoryEntry(gen, hashes[i], height(i), fee(i));
+    }
+    gen.writeEndArray();
+    return sr.finish();
+  }
+
+  /**
+   * As ElectrumNotifier.getScriptHashHistory builds it, sent as a plain reply
+   */
+  public static byte[] jsonHistory(Object id, String[] hashes)
+    throws Exception
+  {
+    JSONArray arr = new JSONArray();
+    for(int i=0; i<hashes.length; i++)
+    {
+      arr.put(ElectrumNotifier.getHistoryEntry(hashes[i], height(i), fee(i)));
+    }
+    JSONObject reply = new JSONObject();
+    reply.put("id", id);
+    reply.put("jsonrpc", "2.0");
+    reply.put("result", arr);
+    return new EncodedMessage(reply).getBytes();
+  }
+
+  private static void assertSameHistory(String[] hashes)
+    throws Exception
+  {
+    EncodedMessage msg = EncodedMessage.forResult(7, streamHistory(hashes));
+
+    JSONObject streamed = new JSONObject(msg.toString());
+    JSONObject old = new JSONObject(new String(jsonHistory(7, hashes), StandardCharsets.UTF_8).trim());
+
+    Assert.assertEquals(old.getInt("id"), streamed.getInt("id"));
+    Assert.assertEquals(old.getString("jsonrpc"), streamed.getString("jsonrpc"));
+    Assert.assertEquals(old.length(), streamed.length());
+    JSONArray a = old.getJSONArray("result");
+    JSONArray b = streamed.getJSONArray("result");
+    Assert.assertEquals(a.length(), b.length());
+    for(int i=0; i<a.length(); i++)
+    {
+      JSONObject x = a.getJSONObject(i);
+      JSONObject y = b.getJSONObject(i);
+      Assert.assertEquals(x.length(), y.length());
+      Assert.assertEquals(x.getString("tx_hash"), y.getString("tx_hash"));
+      Assert.assertEquals(x.getInt("height"), y.getInt("height"));
+      Assert.assertEquals(x.has("fee"), y.has("fee"));
+      if (x.has("fee")) Assert.assertEquals(x.getLong("fee"), y.getLong("fee"));
+    }
+  }
+
+  @Test
+  public void testHistoryMatchesJson()
+    throws Exception
+  {
+    assertSameHistory(makeHashes(100));
+  }
+
+  @Test
+  public void testLargeHistoryMatchesJson()
+    throws Exception
+  {
+    assertSameHistory(makeHashes(HISTORY_SIZE));
+  }
+
+  @Test
+  public void testHex()
+    throws Exception
+  {
+    for(int len : new int[]{0, 1, 250, 100000})
+    {
+      byte[] data = TestUtil.randomBytes(len);
+      StreamingReply sr = new StreamingReply();
+      StreamingReply.writeHex(sr.getGenerator(), data);
+      String s = new String(sr.finish(), StandardCharsets.UTF_8);
+      Assert.assertEquals("\"" + Util.getHexString(data) + "\"", s);
+    }
+  }
+
+  @Test
+  public void testBufferReuse()
+    throws Exception
+  {
+    byte[] a = streamHistory(makeHashes(10));
+    byte[] a_copy = a.clone();
+    streamHistory(makeHashes(1000));
+    byte[] c = streamHistory(makeHashes(3));
+    Assert.assertArrayEquals(a_copy, a);
+    Assert.assertEquals(3, new JSONArray(new String(c, StandardCharsets.UTF_8)).length());
+  }
+
+}
@@ -0,0 +1,75 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import jelectrum.TimingWheel;
+
+public class TimingWheelTest
+{
+  private static final long TICK=1000L;
+
+  @Test
+  public void testExpiresInOrder()
+  {
+    for(long base : new long[]{0L, -5000000L, Long.MAX_VALUE / 2})
+    {
+      TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, 16, base);
+      Random rnd = new Random(3);
+      long[] deadlines = new long[1000];
+      for(int i=0; i<deadlines.length; i++)
+      {
+        // Up to several turns of the wheel away
+        deadlines[i] = base + rnd.nextInt(100 * (int)TICK);
+        wheel.schedule(i, deadlines[i]);
+      }
+
+      HashSet<Integer> seen = new HashSet<>();
+      for(long now = base; now <= base + 101 * TICK; now += 300L)
+      {
+        ArrayList<Integer> due = new ArrayList<>();
+        wheel.advance(now, due);
+        for(int i : due)
+        {
+          Assert.assertTrue(deadlines[i] <= now);
+          // Never more than a tick late
+          Assert.assertTrue(deadlines[i] > now - TICK - 300L);
+          Assert.assertTrue(seen.add(i));
+        }
+      }
+      Assert.assertEquals(deadlines.length, seen.size());
+    }
+  }
+
+  @Test
+  public void testPastDeadlineDueNextAdvance()
+  {
+    TimingWheel<String> wheel = new TimingWheel<String>(TICK, 16, 50000L);
+    ArrayList<String> due = new ArrayList<>();
+    wheel.advance(50000L, due);
+
+    wheel.schedule("late", 1000L);
+    wheel.advance(50100L, due);
+    Assert.assertEquals(1, due.size());
+    wheel.advance(51000L, due);
+    Assert.assertEquals(1, due.size());
+  }
+
+  @Test
+  public void testLongGap()
+  {
+    TimingWheel<String> wheel = new TimingWheel<String>(TICK, 16, 0L);
+    wheel.schedule("a", 5 * TICK);
+    wheel.schedule("b", 500 * TICK);
+    ArrayList<String> due = new ArrayList<>();
+    wheel.advance(100 * TICK, due);
+    Assert.assertEquals(1, due.size());
+    Assert.assertEquals("a", due.get(0));
+    wheel.advance(500 * TICK, due);
+    Assert.assertEquals(2, due.size());
+  }
+
+}
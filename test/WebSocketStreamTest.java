@@ -0,0 +1,179 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import jelectrum.LineFramer;
+import jelectrum.WebSocketStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class WebSocketStreamTest
+{
+  private static final String UPGRADE =
+    "GET /chat HTTP/1.1\r\n"
+    + "Host: server.example.com\r\n"
+    + "Upgrade: websocket\r\n"
+    + "Connection: Upgrade\r\n"
+    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+    + "Sec-WebSocket-Version: 13\r\n\r\n";
+
+  /** A client frame, always masked */
+  private static void writeFrame(OutputStream out, int b0, byte[] payload)
+    throws IOException
+  {
+    byte[] mask = new byte[]{0x37, (byte)0xfa, 0x21, 0x3d};
+    out.write(b0);
+    if (payload.length < 126)
+    {
+      out.write(0x80 | payload.length);
+    }
+    else
+    {
+      out.write(0x80 | 126);
+      out.write(payload.length >>> 8);
+      out.write(payload.length & 0xFF);
+    }
+    out.write(mask);
+    for(int i=0; i<payload.length; i++) out.write(payload[i] ^ mask[i & 3]);
+  }
+
+  private static byte[] bytes(String s)
+  {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testAcceptKey()
+  {
+    // Example from RFC 6455
+    Assert.assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketStream.getAcceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+  }
+
+  @Test
+  public void testMessagesBecomeLines()
+    throws Exception
+  {
+    ByteArrayOutputStream client = new ByteArrayOutputStream();
+    client.write(bytes(UPGRADE));
+    writeFrame(client, 0x81, bytes("{\"id\":1}"));
+    writeFrame(client, 0x89, bytes("hi"));
+    // Fragmented message
+    writeFrame(client, 0x01, bytes("{\"id\":"));
+    writeFrame(client, 0x80, bytes("2}"));
+    StringBuilder big = new StringBuilder();
+    for(int i=0; i<1000; i++) big.append("x");
+    writeFrame(client, 0x81, bytes(big.toString()));
+    writeFrame(client, 0x88, new byte[]{0x03, (byte)0xe8});
+
+    ByteArrayOutputStream server = new ByteArrayOutputStream();
+    WebSocketStream ws = new WebSocketStream(new ByteArrayInputStream(client.toByteArray()), server, 10000);
+    ws.handshake();
+
+    String response = new String(server.toByteArray(), StandardCharsets.US_ASCII);
+    Assert.assertTrue(response.startsWith("HTTP/1.1 101 "));
+    Assert.assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+    server.reset();
+
+    LineFramer framer = new LineFramer(ws.getInputStream(), 10000);
+    Assert.assertTrue(framer.nextLine());
+    Assert.assertEquals("{\"id\":1}", framer.getLineString());
+    Assert.assertTrue(framer.nextLine());
+    Assert.assertEquals("{\"id\":2}", framer.getLineString());
+    Assert.assertTrue(framer.nextLine());
+    Assert.assertEquals(big.toString(), framer.getLineString());
+    Assert.assertFalse(framer.nextLine());
+
+    // Pong for the ping, then the close echoed
+    byte[] out = server.toByteArray();
+    Assert.assertEquals(0x8A, out[0] & 0xFF);
+    Assert.assertEquals(2, out[1]);
+    Assert.assertEquals("hi", new String(out, 2, 2, StandardCharsets.US_ASCII));
+    Assert.assertEquals(0x88, out[4] & 0xFF);
+    Assert.assertEquals(2, out[5]);
+  }
+
+  @Test
+  public void testOutputFrames()
+    throws Exception
+  {
+    ByteArrayOutputStream server = new ByteArrayOutputStream();
+    WebSocketStream ws = new WebSocketStream(new ByteArrayInputStream(new byte[0]), server, 10000);
+    OutputStream out = ws.getOutputStream();
+
+    out.write(bytes("{\"id\":1,\"result\":null}\n"));
+    out.flush();
+    byte[] f = server.toByteArray();
+    Assert.assertEquals(0x81, f[0] & 0xFF);
+    Assert.assertEquals(22, f[1]);
+    Assert.assertEquals("{\"id\":1,\"result\":null}", new String(f, 2, 22, StandardCharsets.UTF_8));
+
+    server.reset();
+    byte[] big = new byte[300];
+    java.util.Arrays.fill(big, (byte)'a');
+    out.write(big);
+    out.flush();
+    f = server.toByteArray();
+    Assert.assertEquals(126, f[1]);
+    Assert.assertEquals(300, ((f[2] & 0xFF) << 8) | (f[3] & 0xFF));
+    Assert.assertEquals(304, f.length);
+  }
+
+  @Test
+  public void testEmbeddedNewlines()
+    throws Exception
+  {
+    ByteArrayOutputStream client = new ByteArrayOutputStream();
+    client.write(bytes(UPGRADE));
+    writeFrame(client, 0x81, bytes("{\n  \"id\": 1\r\n}"));
+    writeFrame(client, 0x81, bytes("{\"id\":2}"));
+
+    WebSocketStream ws = new WebSocketStream(new ByteArrayInputStream(client.toByteArray()), new ByteArrayOutputStream(), 10000);
+    ws.handshake();
+
+    LineFramer framer = new LineFramer(ws.getInputStream(), 10000);
+    Assert.assertTrue(framer.nextLine());
+    Assert.assertEquals(1, new org.json.JSONObject(framer.getLineString()).getInt("id"));
+    Assert.assertTrue(framer.nextLine());
+    Assert.assertEquals("{\"id\":2}", framer.getLineString());
+    Assert.assertFalse(framer.nextLine());
+  }
+
+  @Test(expected=IOException.class)
+  public void testWrongVersion()
+    throws Exception
+  {
+    ByteArrayOutputStream server = new ByteArrayOutputStream();
+    WebSocketStream ws = new WebSocketStream(new ByteArrayInputStream(bytes(UPGRADE.replace("Version: 13", "Version: 8"))), server, 10000);
+    try
+    {
+      ws.handshake();
+    }
+    finally
+    {
+      String response = new String(server.toByteArray(), StandardCharsets.US_ASCII);
+      Assert.assertTrue(response.startsWith("HTTP/1.1 426 "));
+      Assert.assertTrue(response.contains("Sec-WebSocket-Version: 13\r\n"));
+    }
+  }
+
+  @Test(expected=IOException.class)
+  public void testNotUpgrade()
+    throws Exception
+  {
+    ByteArrayOutputStream server = new ByteArrayOutputStream();
+    WebSocketStream ws = new WebSocketStream(new ByteArrayInputStream(bytes("GET / HTTP/1.1\r\nHost: x\r\n\r\n")), server, 10000);
+    try
+    {
+      ws.handshake();
+    }
+    finally
+    {
+      Assert.assertTrue(new String(server.toByteArray(), StandardCharsets.US_ASCII).startsWith("HTTP/1.1 400 "));
+    }
+  }
+
+}
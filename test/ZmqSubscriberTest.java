@@ -0,0 +1,95 @@
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jelectrum.EventLog;
+import jelectrum.ZmqSubscriber;
+
+public class ZmqSubscriberTest
+{
+
+  @Test
+  public void testLocalPublisher()
+    throws Exception
+  {
+    final ServerSocket ss = new ServerSocket(0);
+    final LinkedBlockingQueue<String> got = new LinkedBlockingQueue<>();
+    final LinkedBlockingQueue<String> subscribed = new LinkedBlockingQueue<>();
+
+    Thread publisher = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          Socket sock = ss.accept();
+          DataInputStream in = new DataInputStream(sock.getInputStream());
+          OutputStream out = sock.getOutputStream();
+
+          ZmqSubscriber.writeGreeting(out, true);
+          ZmqSubscriber.readGreeting(in);
+
+          ZmqSubscriber.Frame ready = ZmqSubscriber.readFrame(in);
+          Assert.assertTrue(ready.isCommand());
+          Assert.assertEquals("READY", ready.getCommandName());
+          ZmqSubscriber.writeCommand(out, "READY", "Socket-Type", "PUB");
+
+          for(int i=0; i<2; i++)
+          {
+            ZmqSubscriber.Frame sub = ZmqSubscriber.readFrame(in);
+            Assert.assertEquals(1, sub.getBody()[0]);
+            subscribed.put(new String(sub.getBody(), 1, sub.getBody().length-1, "US-ASCII"));
+          }
+
+          ZmqSubscriber.writeFrame(out, ZmqSubscriber.FLAG_MORE, "hashblock".getBytes());
+          ZmqSubscriber.writeFrame(out, ZmqSubscriber.FLAG_MORE, new byte[32]);
+          ZmqSubscriber.writeFrame(out, 0, new byte[4]);
+
+          ZmqSubscriber.writeFrame(out, ZmqSubscriber.FLAG_MORE, "rawtx".getBytes());
+          ZmqSubscriber.writeFrame(out, ZmqSubscriber.FLAG_MORE, new byte[1000]);
+          ZmqSubscriber.writeFrame(out, 0, new byte[4]);
+          out.flush();
+
+          Thread.sleep(2000);
+          sock.close();
+        }
+        catch(Throwable t)
+        {
+          t.printStackTrace();
+        }
+      }
+    };
+    publisher.setDaemon(true);
+    publisher.start();
+
+    ZmqSubscriber zmq = new ZmqSubscriber(
+      new EventLog(new ByteArrayOutputStream()),
+      "tcp://127.0.0.1:" + ss.getLocalPort(),
+      ZmqSubscriber.BITCOIND_TOPICS,
+      new ZmqSubscriber.Listener()
+      {
+        public void onZmqMessage(String topic, byte[] body)
+        {
+          got.add(topic + ":" + body.length);
+        }
+      });
+    zmq.start();
+
+    Assert.assertEquals("hashblock", subscribed.poll(10, TimeUnit.SECONDS));
+    Assert.assertEquals("rawtx", subscribed.poll(10, TimeUnit.SECONDS));
+
+    Assert.assertEquals("hashblock:32", got.poll(10, TimeUnit.SECONDS));
+    Assert.assertEquals("rawtx:1000", got.poll(10, TimeUnit.SECONDS));
+
+    ss.close();
+  }
+
+}